@@ -5,12 +5,15 @@ import com.cavetale.core.event.block.PlayerChangeBlockEvent;
 import com.cavetale.core.event.block.PluginBlockEvent;
 import com.cavetale.core.struct.Vec2i;
 import com.cavetale.magicmap.file.WorldFileCache;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import lombok.RequiredArgsConstructor;
 import org.bukkit.Bukkit;
 import org.bukkit.World;
 import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
 import org.bukkit.block.BlockState;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
@@ -43,29 +46,45 @@ public final class BlockChangeListener implements Listener {
         return this;
     }
 
+    /**
+     * Only the column of the block needs a new render, and the one
+     * north of it for shading.  The height decides which RenderTypes
+     * may show the change.
+     */
     private boolean requestBlockRerender(Block block) {
-        return requestChunkRerender(block.getWorld(), block.getX() >> 4, block.getZ() >> 4);
+        return requestColumnRerender(block.getWorld(), block.getX(), block.getY(), block.getZ());
     }
 
-    private boolean requestChunkRerender(World world, int chunkX, int chunkZ) {
+    private boolean requestColumnRerender(World world, int blockX, int y, int blockZ) {
         final WorldFileCache worldFileCache = plugin.getWorlds().getWorld(world);
         if (worldFileCache == null) return false;
-        return worldFileCache.requestChunkRerender(chunkX, chunkZ);
+        return worldFileCache.requestColumnRerender(blockX, y, blockZ);
     }
 
+    /**
+     * Request each column once, at the highest changed block.
+     */
     private void requestBlockListRerender(Iterable<Block> blockList) {
-        final Set<Vec2i> chunks = new HashSet<>();
+        World world = null;
+        final Map<Vec2i, Integer> columns = new HashMap<>();
         for (Block block : blockList) {
-            if (!chunks.add(Vec2i.of(block.getX() >> 4, block.getZ() >> 4))) continue;
-            requestBlockRerender(block);
+            world = block.getWorld();
+            columns.merge(Vec2i.of(block.getX(), block.getZ()), block.getY(), Math::max);
+        }
+        for (Map.Entry<Vec2i, Integer> entry : columns.entrySet()) {
+            requestColumnRerender(world, entry.getKey().x, entry.getValue(), entry.getKey().z);
         }
     }
 
     private void requestBlockStateListRerender(Iterable<BlockState> blockList) {
-        final Set<Vec2i> chunks = new HashSet<>();
+        World world = null;
+        final Map<Vec2i, Integer> columns = new HashMap<>();
         for (BlockState blockState : blockList) {
-            if (!chunks.add(Vec2i.of(blockState.getX() >> 4, blockState.getZ() >> 4))) continue;
-            requestBlockRerender(blockState.getBlock());
+            world = blockState.getWorld();
+            columns.merge(Vec2i.of(blockState.getX(), blockState.getZ()), blockState.getY(), Math::max);
+        }
+        for (Map.Entry<Vec2i, Integer> entry : columns.entrySet()) {
+            requestColumnRerender(world, entry.getKey().x, entry.getValue(), entry.getKey().z);
         }
     }
 
@@ -142,12 +161,28 @@ public final class BlockChangeListener implements Listener {
 
     @EventHandler(ignoreCancelled = true, priority = EventPriority.MONITOR)
     private void onBlockPistonExtend(BlockPistonExtendEvent event) {
-        requestBlockListRerender(event.getBlocks());
+        requestPistonRerender(event.getBlock(), event.getDirection(), event.getBlocks());
     }
 
     @EventHandler(ignoreCancelled = true, priority = EventPriority.MONITOR)
     private void onBlockPistonRetract(BlockPistonRetractEvent event) {
-        requestBlockListRerender(event.getBlocks());
+        requestPistonRerender(event.getBlock(), event.getDirection(), event.getBlocks());
+    }
+
+    /**
+     * Moved blocks change the columns they leave and enter, as does
+     * the piston head.  The head sits on either side of the piston,
+     * depending on the event.
+     */
+    private void requestPistonRerender(Block piston, BlockFace direction, List<Block> blocks) {
+        final List<Block> blockList = new ArrayList<>(blocks.size() * 2 + 2);
+        blockList.add(piston.getRelative(direction));
+        blockList.add(piston.getRelative(direction.getOppositeFace()));
+        for (Block block : blocks) {
+            blockList.add(block);
+            blockList.add(block.getRelative(direction));
+        }
+        requestBlockListRerender(blockList);
     }
 
     @EventHandler(ignoreCancelled = true, priority = EventPriority.MONITOR)
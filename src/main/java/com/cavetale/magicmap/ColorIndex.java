@@ -2,6 +2,7 @@ package com.cavetale.magicmap;
 
 import java.util.EnumMap;
 import org.bukkit.Material;
+import org.bukkit.block.data.Waterlogged;
 
 /**
  * Store all the available colors.
@@ -90,6 +91,20 @@ public enum ColorIndex {
     public final int darkRgb;
     private static final ColorIndex[] INDEXED;
     private static final EnumMap<Material, Integer> MATERIAL_MAP = new EnumMap<>(Material.class);
+    // Material info, indexed by Material#ordinal.  The lowest byte is
+    // the color index, the bits above are the flags below.
+    private static final int[] MATERIAL_INFO;
+    public static final int COLOR_MASK = 0xFF;
+    /** Not in the material map.  The color index is BLACK. */
+    public static final int FLAG_UNMAPPED = 1 << 8;
+    /** Air, unmapped, or EMPTY.  Column scans look through these. */
+    public static final int FLAG_TRANSPARENT = 1 << 9;
+    public static final int FLAG_AIR = 1 << 10;
+    public static final int FLAG_WATER = 1 << 11;
+    public static final int FLAG_LAVA = 1 << 12;
+    public static final int FLAG_LIQUID = FLAG_WATER | FLAG_LAVA;
+    /** The block data may be waterlogged. */
+    public static final int FLAG_WATERLOGGABLE = 1 << 13;
     // Color sub indexes
     public static final int NORMAL = 0;
     public static final int LIGHT = 1;
@@ -1263,6 +1278,38 @@ public enum ColorIndex {
         MATERIAL_MAP.put(Material.RAW_IRON_BLOCK, 60);
         MATERIAL_MAP.put(Material.GLOW_LICHEN, 61);
         MATERIAL_MAP.put(Material.VERDANT_FROGLIGHT, 61);
+        MATERIAL_INFO = buildMaterialInfo();
+    }
+
+    private static int[] buildMaterialInfo() {
+        final Material[] materials = Material.values();
+        final int[] result = new int[materials.length];
+        boolean blockTypesAvailable = true;
+        for (Material material : materials) {
+            final Integer index = MATERIAL_MAP.get(material);
+            int info = index != null && indexed(index) != null
+                ? index
+                : BLACK.index | FLAG_UNMAPPED | FLAG_TRANSPARENT;
+            if (material.isAir() || (info & COLOR_MASK) == EMPTY.index) info |= FLAG_TRANSPARENT;
+            if (material.isAir()) info |= FLAG_AIR;
+            if (material == Material.WATER) info |= FLAG_WATER;
+            if (material == Material.LAVA) info |= FLAG_LAVA;
+            if (material.isBlock() && !material.isLegacy()) {
+                // Block types come from the server registry.  Without
+                // it, every block may be waterlogged.
+                boolean waterloggable = true;
+                if (blockTypesAvailable) {
+                    try {
+                        waterloggable = Waterlogged.class.isAssignableFrom(material.asBlockType().getBlockDataClass());
+                    } catch (RuntimeException | LinkageError e) {
+                        blockTypesAvailable = false;
+                    }
+                }
+                if (waterloggable) info |= FLAG_WATERLOGGABLE;
+            }
+            result[material.ordinal()] = info;
+        }
+        return result;
     }
 
     public static ColorIndex indexed(int index) {
@@ -1270,12 +1317,25 @@ public enum ColorIndex {
         return INDEXED[index];
     }
 
+    /**
+     * Get the color index and flags of a material with one array
+     * read.
+     */
+    public static int materialInfo(Material material) {
+        return MATERIAL_INFO[material.ordinal()];
+    }
+
+    /**
+     * Get the color of a value returned by materialInfo().
+     */
+    public static ColorIndex ofInfo(int info) {
+        return INDEXED[info & COLOR_MASK];
+    }
+
     public static ColorIndex ofMaterial(Material material, ColorIndex defaultValue) {
-        final Integer index = MATERIAL_MAP.get(material);
-        if (index == null) return defaultValue;
-        ColorIndex result = indexed(index);
-        return result != null
-            ? result
+        final int info = materialInfo(material);
+        return (info & FLAG_UNMAPPED) == 0
+            ? ofInfo(info)
             : defaultValue;
     }
 
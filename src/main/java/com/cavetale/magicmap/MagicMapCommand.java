@@ -4,6 +4,10 @@ import com.cavetale.core.command.AbstractCommand;
 import com.cavetale.core.command.CommandArgCompleter;
 import com.cavetale.core.command.CommandNode;
 import com.cavetale.core.command.CommandWarn;
+import com.cavetale.magicmap.file.FullRenderRegion;
+import com.cavetale.magicmap.file.RegionCache;
+import com.cavetale.magicmap.file.RegionIoPool;
+import com.cavetale.magicmap.file.RenderScheduler;
 import com.cavetale.magicmap.file.WorldBorderCache;
 import com.cavetale.magicmap.file.WorldFileCache;
 import com.cavetale.magicmap.file.WorldRenderCache;
@@ -105,6 +109,10 @@ final class MagicMapCommand extends AbstractCommand<MagicMapPlugin> {
             .completers(CommandArgCompleter.supplyList(() -> plugin.getWorlds().getWorldNames()))
             .description("Unpause a full render")
             .senderCaller(this::fullRenderUnpause);
+        fullRenderNode.addChild("offline").arguments("<world> [threads]")
+            .completers(CommandArgCompleter.supplyList(() -> plugin.getWorlds().getWorldNames()))
+            .description("Render a world from its region files")
+            .senderCaller(this::fullRenderOffline);
     }
 
     private WorldFileCache requireWorldFileCache(String worldName) {
@@ -184,11 +192,17 @@ final class MagicMapCommand extends AbstractCommand<MagicMapPlugin> {
     }
 
     private void worldsList(CommandSender sender) {
+        final RenderScheduler scheduler = plugin.getWorlds().getRenderScheduler();
         sender.sendMessage(text("" + plugin.getWorlds().getWorldNames().size() + " worlds mapped", YELLOW));
+        sender.sendMessage(textOfChildren(text("Render Budget ", GRAY),
+                                          text(String.format("%.1fms", scheduler.getBudgetMillis()), WHITE),
+                                          text(" Used ", GRAY),
+                                          text(String.format("%.1fms", scheduler.getUsedMillisAverage()), WHITE)));
         for (String name : plugin.getWorlds().getWorldNames()) {
             final WorldFileCache cache = plugin.getWorlds().getWorld(name);
             final String cmd = "/magicmap worlds info " + name;
             sender.sendMessage(textOfChildren(text(name, YELLOW),
+                                              text(String.format(" %.1fms", scheduler.getUsage(name).getMillisAverage()), GRAY),
                                               (cache.isFullRenderScheduled()
                                                ? text(" Rendering", YELLOW)
                                                : empty()))
@@ -213,6 +227,52 @@ final class MagicMapCommand extends AbstractCommand<MagicMapPlugin> {
                                           text("" + cache.getTag().getCustomWorldBorder(), WHITE)));
         sender.sendMessage(textOfChildren(text("Display Name ", GRAY),
                                           text("" + cache.getTag().getDisplayName(), WHITE)));
+        final RenderScheduler scheduler = plugin.getWorlds().getRenderScheduler();
+        final RenderScheduler.Usage usage = scheduler.getUsage(cache.getName());
+        sender.sendMessage(textOfChildren(text("Render Weight ", GRAY),
+                                          text(scheduler.getWeight(cache.getName()), WHITE)));
+        sender.sendMessage(textOfChildren(text("Render Usage ", GRAY),
+                                          text(String.format("%.2fms", usage.getMillisAverage()), WHITE),
+                                          text(" per tick, ", GRAY),
+                                          text(String.format("%.1fs", usage.getTotalMillis() / 1000.0), WHITE),
+                                          text(" in ", GRAY),
+                                          text(usage.getTicks(), WHITE),
+                                          text(" ticks", GRAY)));
+        final RegionIoPool io = plugin.getWorlds().getRegionIoPool();
+        sender.sendMessage(textOfChildren(text("Region I/O ", GRAY),
+                                          text(io.getInFlight(), WHITE),
+                                          text("/", DARK_GRAY),
+                                          text(io.getThreads(), WHITE),
+                                          text(" queued:", GRAY),
+                                          text(io.getQueueDepth(), WHITE),
+                                          text(" done:", GRAY),
+                                          text(io.getCompletedJobs(), WHITE),
+                                          text(" failed:", GRAY),
+                                          text(io.getFailedJobs(), WHITE),
+                                          text(" written:", GRAY),
+                                          text(String.format("%.1fMiB", (double) io.getBytesWritten() / (1024.0 * 1024.0)), WHITE)));
+        sender.sendMessage(textOfChildren(text("Region I/O Latency ", GRAY),
+                                          text(String.format("%.1fms", io.getWaitMillisAverage()), WHITE),
+                                          text(" wait, ", GRAY),
+                                          text(String.format("%.1fms", io.getIoMillisAverage()), WHITE),
+                                          text(" io, ", GRAY),
+                                          text(String.format("%.1fms", io.getIoMillisMax()), WHITE),
+                                          text(" max", GRAY)));
+        final RegionCache regionCache = plugin.getWorlds().getRegionCache();
+        sender.sendMessage(textOfChildren(text("Region Cache ", GRAY),
+                                          text(String.format("%.1f", (double) regionCache.getUsedBytes() / (1024.0 * 1024.0)), WHITE),
+                                          text("/", DARK_GRAY),
+                                          text(String.format("%.1fMiB", (double) regionCache.getMaxBytes() / (1024.0 * 1024.0)), WHITE),
+                                          text(" regions:", GRAY),
+                                          text(regionCache.getRegionCount(), WHITE),
+                                          text(" hits:", GRAY),
+                                          text(regionCache.getHits(), WHITE),
+                                          text(" misses:", GRAY),
+                                          text(regionCache.getMisses(), WHITE),
+                                          text(" evictions:", GRAY),
+                                          text(regionCache.getEvictions(), WHITE),
+                                          text(" saves:", GRAY),
+                                          text(regionCache.getEvictionSaves(), WHITE)));
         sender.sendMessage(textOfChildren(text("Chunk Tickets ", GRAY),
                                           text(cache.getChunkTicketMap().size(), WHITE),
                                           text("/", DARK_GRAY),
@@ -227,6 +287,16 @@ final class MagicMapCommand extends AbstractCommand<MagicMapPlugin> {
                                            : text("Inactive", DARK_GRAY))));
         sender.sendMessage(textOfChildren(text(" Chunk Render Queue ", GRAY),
                                           text(cache.getChunkRenderQueue().size(), WHITE)));
+        sender.sendMessage(textOfChildren(text(" Hidden Block Changes ", GRAY),
+                                          text(cache.getHiddenBlockChanges(), WHITE)));
+        sender.sendMessage(textOfChildren(text(" Hot Chunks ", GRAY),
+                                          text(cache.getHotChunkTracker().countHotChunks(), WHITE),
+                                          text(" queued:", GRAY),
+                                          text(cache.getHotChunkQueue().size(), WHITE),
+                                          text(" deferred:", GRAY),
+                                          text(cache.getHotChunkTracker().getDeferredChanges(), WHITE),
+                                          text(" total:", GRAY),
+                                          text(cache.getHotChunkTracker().getChunksTurnedHot(), WHITE)));
         sender.sendMessage(textOfChildren(text(" Chunk Render Task ", GRAY),
                                           (cache.getChunkRenderTask() != null
                                            ? cache.getChunkRenderTask().getInfoComponent()
@@ -235,10 +305,12 @@ final class MagicMapCommand extends AbstractCommand<MagicMapPlugin> {
             sender.sendMessage(text(renderCache.getRenderType().getHumanName(), YELLOW));
             sender.sendMessage(textOfChildren(text(" Regions Loaded ", GRAY),
                                               text(renderCache.getRegionMap().size(), WHITE)));
-            sender.sendMessage(textOfChildren(text(" Current Async Region ", GRAY),
-                                              text("" + renderCache.getCurrentAsyncRegion(), WHITE)));
-            sender.sendMessage(textOfChildren(text(" Async Queue ", GRAY),
-                                              text(renderCache.getAsyncQueue().size(), WHITE)));
+            sender.sendMessage(textOfChildren(text(" Regions Busy ", GRAY),
+                                              text(renderCache.countBusyRegions(), WHITE)));
+            sender.sendMessage(textOfChildren(text(" Regions Dirty ", GRAY),
+                                              text(renderCache.countDirtyRegions(), WHITE)));
+            sender.sendMessage(textOfChildren(text(" Journal Records ", GRAY),
+                                              text(renderCache.countJournalRecords(), WHITE)));
             sender.sendMessage(textOfChildren(text(" Chunk Render Queue ", GRAY),
                                               text(renderCache.getChunkRenderQueue().size(), WHITE)));
             sender.sendMessage(textOfChildren(text(" Chunk Render Task ", GRAY),
@@ -348,6 +420,28 @@ final class MagicMapCommand extends AbstractCommand<MagicMapPlugin> {
         return true;
     }
 
+    private boolean fullRenderOffline(CommandSender sender, String[] args) {
+        if (args.length != 1 && args.length != 2) return false;
+        final WorldFileCache cache = requireWorldFileCache(args[0]);
+        final int threads = args.length >= 2
+            ? CommandArgCompleter.requireInt(args[1])
+            : Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        if (threads < 1) {
+            throw new CommandWarn("Invalid thread count: " + threads);
+        }
+        if (!cache.isPersistent()) {
+            throw new CommandWarn("World is not persistent: " + cache.getName());
+        }
+        if (cache.isFullRenderScheduled()) {
+            throw new CommandWarn("Full render is already scheduled: " + cache.getName());
+        }
+        if (!cache.startOfflineRender(threads)) {
+            throw new CommandWarn("Offline render could not be started: " + cache.getName());
+        }
+        sender.sendMessage(text("Offline render started with " + threads + " threads, see console: " + cache.getName(), YELLOW));
+        return true;
+    }
+
     private boolean fullRenderStop(CommandSender sender, String[] args) {
         if (args.length != 1) return false;
         final WorldFileCache cache = requireWorldFileCache(args[0]);
@@ -379,29 +473,36 @@ final class MagicMapCommand extends AbstractCommand<MagicMapPlugin> {
                                            : text("None", DARK_GRAY))));
         sender.sendMessage(textOfChildren(text("Start Time ", GRAY),
                                           text("" + new Date(render.getStartTime()), WHITE)));
-        sender.sendMessage(textOfChildren(text("Timeout ", GRAY),
-                                          (render.getTimeout() > 0L
-                                           ? text("" + new Date(render.getTimeout()), WHITE)
-                                           : text("None", DARK_GRAY))));
         sender.sendMessage(textOfChildren(text("Max Millis ", GRAY),
                                           text(render.getMaxMillisPerTick(), WHITE)));
         sender.sendMessage(textOfChildren(text("Ring ", GRAY),
                                           text(render.getCurrentRing(), WHITE)));
         sender.sendMessage(textOfChildren(text("Border ", GRAY),
                                           text("" + render.getWorldBorder(), WHITE)));
-        sender.sendMessage(textOfChildren(text("Current Region ", GRAY),
-                                          text("" + render.getCurrentRegion(), WHITE)));
-        sender.sendMessage(textOfChildren(text("Current Chunks ", GRAY),
-                                          text(render.getCurrentChunks().size(), WHITE)));
-        sender.sendMessage(textOfChildren(text("Chunks Held ", GRAY),
-                                          (render.isChunksHeld()
-                                           ? text("Chunks held", WHITE)
-                                           : text("Not held", DARK_GRAY))));
+        sender.sendMessage(textOfChildren(text("Active Regions ", GRAY),
+                                          text(render.getActiveRegions().size(), WHITE)));
+        for (FullRenderRegion activeRegion : render.getActiveRegions()) {
+            sender.sendMessage(textOfChildren(text("- Region ", GRAY),
+                                              text("" + activeRegion.getRegion(), WHITE),
+                                              text(" Chunks ", GRAY),
+                                              text(activeRegion.getChunks().size(), WHITE),
+                                              (activeRegion.isChunksHeld()
+                                               ? text(" held", WHITE)
+                                               : text(" not held", DARK_GRAY)),
+                                              text(" Renderers ", GRAY),
+                                              (activeRegion.getRenderers() != null
+                                               ? text("" + activeRegion.getRenderers().size(), WHITE)
+                                               : text("None", DARK_GRAY)),
+                                              text(" Status ", GRAY),
+                                              (activeRegion.getStatus() != null
+                                               ? text(activeRegion.getStatus(), WHITE)
+                                               : text("None", DARK_GRAY))));
+        }
         sender.sendMessage(textOfChildren(text("Region Queue ", GRAY),
                                           text(render.getRegionQueue().size(), WHITE)));
-        sender.sendMessage(textOfChildren(text("Renderers ", GRAY),
-                                          (render.getRenderers() != null
-                                           ? text("" + render.getRenderers().size(), WHITE)
+        sender.sendMessage(textOfChildren(text("Prefetch ", GRAY),
+                                          (render.getPrefetchRegion() != null
+                                           ? text("" + render.getPrefetchRegion(), WHITE)
                                            : text("None", DARK_GRAY))));
         sender.sendMessage(textOfChildren(text("Paused ", GRAY),
                                           (render.isPaused()
@@ -32,6 +32,20 @@ public final class MagicMapPlugin extends JavaPlugin {
     // Configuration
     private int mapId;
     private boolean debug;
+    private boolean asyncRender;
+    private int fullRenderRegions;
+    private int fullRenderMaxHeldChunks;
+    private long rerenderAgingMillis;
+    private long hotChunkWindowMillis;
+    private int hotChunkThreshold;
+    private long hotChunkCadenceMillis;
+    private boolean tileStore;
+    private boolean tileStoreExportPng;
+    private long writeBehindIntervalMillis;
+    private long writeBehindMaxBytesPerSecond;
+    private int journalMaxRecords;
+    private int journalCompactRecords;
+    private long regionCacheMaxBytes;
     // Tools
     private TinyFont tinyFont;
     private MagicMapRenderer magicMapRenderer;
@@ -114,6 +128,20 @@ public final class MagicMapPlugin extends JavaPlugin {
     protected void importConfig() {
         reloadConfig();
         debug = getConfig().getBoolean("debug");
+        asyncRender = getConfig().getBoolean("AsyncRender");
+        fullRenderRegions = getConfig().getInt("FullRenderRegions");
+        fullRenderMaxHeldChunks = getConfig().getInt("FullRenderMaxHeldChunks");
+        rerenderAgingMillis = getConfig().getLong("RerenderAgingMillis");
+        hotChunkWindowMillis = getConfig().getLong("HotChunks.WindowMillis");
+        hotChunkThreshold = getConfig().getInt("HotChunks.Threshold");
+        hotChunkCadenceMillis = getConfig().getLong("HotChunks.CadenceMillis");
+        tileStore = getConfig().getBoolean("TileStore.Enabled");
+        tileStoreExportPng = getConfig().getBoolean("TileStore.ExportPng");
+        writeBehindIntervalMillis = getConfig().getLong("WriteBehind.IntervalSeconds") * 1000L;
+        writeBehindMaxBytesPerSecond = getConfig().getLong("WriteBehind.MaxKibPerSecond") * 1024L;
+        journalMaxRecords = getConfig().getInt("Journal.MaxRecords");
+        journalCompactRecords = getConfig().getInt("Journal.CompactRecords");
+        regionCacheMaxBytes = getConfig().getLong("RegionCache.MaxMiB") * 1024L * 1024L;
     }
 
     protected void setupMap() {
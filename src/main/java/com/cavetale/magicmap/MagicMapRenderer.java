@@ -152,9 +152,12 @@ final class MagicMapRenderer extends MapRenderer {
      * Testing reveals that BufferedImage#getScaledInstance (see
      * above) returns a BufferedImage instance anyway, so this is
      * bound to be quick.
+     *
+     * The result is always of TYPE_INT_ARGB so that post render
+     * listeners can write straight into its pixel array.
      */
     private static BufferedImage toBufferedImage(Image image) {
-        if (image instanceof BufferedImage bufferedImage) {
+        if (image instanceof BufferedImage bufferedImage && bufferedImage.getType() == BufferedImage.TYPE_INT_ARGB) {
             return bufferedImage;
         } else {
             final BufferedImage result = new BufferedImage(128, 128, BufferedImage.TYPE_INT_ARGB);
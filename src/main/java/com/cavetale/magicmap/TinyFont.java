@@ -19,12 +19,25 @@ public final class TinyFont {
         private final int y;
     }
 
+    /**
+     * Pixel coordinates are stored as interleaved x and y values so
+     * that printing does not have to iterate over objects.
+     */
     @Value
     static class Char {
         private final int width;
         private final int height;
-        private final List<Pixel> pixels;
-        private final List<Pixel> shadowPixels;
+        private final int[] pixels;
+        private final int[] shadowPixels;
+    }
+
+    private static int[] toArray(List<Pixel> list) {
+        final int[] result = new int[list.size() * 2];
+        for (int i = 0; i < list.size(); i += 1) {
+            result[i * 2] = list.get(i).x;
+            result[i * 2 + 1] = list.get(i).y;
+        }
+        return result;
     }
 
     TinyFont(final BufferedImage image) {
@@ -81,9 +94,9 @@ public final class TinyFont {
                     shadowPixels.add(shadowPixel);
                 }
             }
-            charMap.put(c, new Char(width, height, pixels, shadowPixels));
+            charMap.put(c, new Char(width, height, toArray(pixels), toArray(shadowPixels)));
         }
-        charMap.put(' ', new Char(2, 4, new ArrayList<Pixel>(), new ArrayList<Pixel>()));
+        charMap.put(' ', new Char(2, 4, new int[0], new int[0]));
     }
 
     public interface Drawer {
@@ -98,11 +111,13 @@ public final class TinyFont {
             char c = msg.charAt(i);
             Char chr = charMap.get(c);
             if (chr == null) continue;
-            for (Pixel pixel: chr.pixels) {
-                drawer.draw(length + x + pixel.x, y + pixel.y);
+            final int[] pixels = chr.pixels;
+            for (int j = 0; j < pixels.length; j += 2) {
+                drawer.draw(length + x + pixels[j], y + pixels[j + 1]);
             }
-            for (Pixel pixel: chr.shadowPixels) {
-                shadowDrawer.draw(length + x + pixel.x, y + pixel.y);
+            final int[] shadowPixels = chr.shadowPixels;
+            for (int j = 0; j < shadowPixels.length; j += 2) {
+                shadowDrawer.draw(length + x + shadowPixels[j], y + shadowPixels[j + 1]);
             }
             length += chr.width + 1;
         }
@@ -0,0 +1,69 @@
+package com.cavetale.magicmap.anvil;
+
+import com.cavetale.magicmap.file.MapBlockSource;
+import java.util.HashMap;
+import java.util.Map;
+import org.bukkit.Material;
+
+/**
+ * Read blocks from chunks which were read straight from region
+ * files.  Like the ChunkSnapshotBlockSource, it is filled first and
+ * then handed to a render thread.
+ */
+public final class AnvilBlockSource implements MapBlockSource {
+    private final int minWorldY;
+    private final Map<Long, AnvilChunk> chunks = new HashMap<>();
+
+    public AnvilBlockSource(final int minWorldY) {
+        this.minWorldY = minWorldY;
+    }
+
+    private static long chunkKey(int chunkX, int chunkZ) {
+        return ((long) chunkX << 32) | ((long) chunkZ & 0xFFFFFFFFL);
+    }
+
+    public void put(AnvilChunk chunk) {
+        chunks.put(chunkKey(chunk.getChunkX(), chunk.getChunkZ()), chunk);
+    }
+
+    public int size() {
+        return chunks.size();
+    }
+
+    private AnvilChunk getChunk(int x, int z) {
+        return chunks.get(chunkKey(x >> 4, z >> 4));
+    }
+
+    @Override
+    public boolean hasChunk(int chunkX, int chunkZ) {
+        return chunks.containsKey(chunkKey(chunkX, chunkZ));
+    }
+
+    @Override
+    public Material getType(int x, int y, int z) {
+        final AnvilChunk chunk = getChunk(x, z);
+        if (chunk == null) return Material.AIR;
+        return chunk.getType(x, y, z);
+    }
+
+    @Override
+    public boolean isWaterlogged(int x, int y, int z) {
+        final AnvilChunk chunk = getChunk(x, z);
+        if (chunk == null) return false;
+        return chunk.isWaterlogged(x, y, z);
+    }
+
+    @Override
+    public int getLightFromSky(int x, int y, int z) {
+        final AnvilChunk chunk = getChunk(x, z);
+        if (chunk == null) return 15;
+        return chunk.getLightFromSky(x, y, z);
+    }
+
+    @Override
+    public int getHighestBlockY(int x, int z) {
+        final AnvilChunk chunk = getChunk(x, z);
+        if (chunk == null) return minWorldY - 1;
+        return chunk.getHighestBlockY(x, z);
+    }
+}
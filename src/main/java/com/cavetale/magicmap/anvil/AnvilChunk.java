@@ -0,0 +1,200 @@
+package com.cavetale.magicmap.anvil;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import lombok.Getter;
+import org.bukkit.Material;
+
+/**
+ * The parts of a chunk from a region file which the map needs: block
+ * palettes, sky light and the WORLD_SURFACE height map.  Immutable
+ * once read, so it may be shared between threads.
+ */
+@Getter
+public final class AnvilChunk {
+    private final int chunkX;
+    private final int chunkZ;
+    private final int minSectionY;
+    private final Section[] sections;
+    /** Highest non-air block per column, or null if unknown. */
+    private final int[] highestBlocks;
+    private final int highestSectionTop;
+
+    private static final class Section {
+        private Material[] materials;
+        private boolean[] waterlogged;
+        private long[] data;
+        private int bits;
+        private byte[] skyLight;
+
+        private int paletteIndex(int index) {
+            if (data == null || bits == 0) return 0;
+            final int perLong = 64 / bits;
+            final long value = data[index / perLong] >>> ((index % perLong) * bits);
+            final int result = (int) (value & ((1L << bits) - 1L));
+            return result < materials.length ? result : 0;
+        }
+
+        private boolean isEmpty() {
+            for (Material material : materials) {
+                if (!material.isAir()) return false;
+            }
+            return true;
+        }
+    }
+
+    private AnvilChunk(final int chunkX, final int chunkZ, final int minSectionY, final Section[] sections, final int[] highestBlocks) {
+        this.chunkX = chunkX;
+        this.chunkZ = chunkZ;
+        this.minSectionY = minSectionY;
+        this.sections = sections;
+        this.highestBlocks = highestBlocks;
+        int top = (minSectionY << 4) - 1;
+        for (int i = sections.length - 1; i >= 0; i -= 1) {
+            if (sections[i] != null && !sections[i].isEmpty()) {
+                top = ((minSectionY + i) << 4) + 15;
+                break;
+            }
+        }
+        this.highestSectionTop = top;
+    }
+
+    /**
+     * Decode the NBT of a chunk.
+     *
+     * @return the chunk, or null if it is not fully generated
+     */
+    @SuppressWarnings("unchecked")
+    public static AnvilChunk of(Map<String, Object> nbt, Map<String, Material> materialCache) {
+        final Object status = nbt.get("Status");
+        if (status instanceof String string && !string.equals("minecraft:full") && !string.equals("full")) {
+            return null;
+        }
+        if (!(nbt.get("xPos") instanceof Integer chunkX) || !(nbt.get("zPos") instanceof Integer chunkZ)) return null;
+        if (!(nbt.get("sections") instanceof List<?> sectionList)) return null;
+        // Find the section range
+        int minSectionY = Integer.MAX_VALUE;
+        int maxSectionY = Integer.MIN_VALUE;
+        for (Object it : sectionList) {
+            if (!(it instanceof Map<?, ?> sectionTag) || !(sectionTag.get("Y") instanceof Number y)) continue;
+            minSectionY = Math.min(minSectionY, y.intValue());
+            maxSectionY = Math.max(maxSectionY, y.intValue());
+        }
+        if (nbt.get("yPos") instanceof Number yPos) {
+            minSectionY = yPos.intValue();
+        }
+        if (minSectionY > maxSectionY) return null;
+        final Section[] sections = new Section[maxSectionY - minSectionY + 1];
+        for (Object it : sectionList) {
+            if (!(it instanceof Map<?, ?> sectionTag) || !(sectionTag.get("Y") instanceof Number y)) continue;
+            final int index = y.intValue() - minSectionY;
+            if (index < 0 || index >= sections.length) continue;
+            final Section section = new Section();
+            if (sectionTag.get("SkyLight") instanceof byte[] skyLight && skyLight.length == 2048) {
+                section.skyLight = skyLight;
+            }
+            if (sectionTag.get("block_states") instanceof Map<?, ?> blockStates
+                && blockStates.get("palette") instanceof List<?> palette
+                && !palette.isEmpty()) {
+                section.materials = new Material[palette.size()];
+                section.waterlogged = new boolean[palette.size()];
+                for (int i = 0; i < palette.size(); i += 1) {
+                    final Map<String, Object> entry = palette.get(i) instanceof Map<?, ?> map
+                        ? (Map<String, Object>) map
+                        : Map.of();
+                    final String name = entry.get("Name") instanceof String string ? string : "minecraft:air";
+                    section.materials[i] = materialCache.computeIfAbsent(name, AnvilChunk::toMaterial);
+                    section.waterlogged[i] = entry.get("Properties") instanceof Map<?, ?> properties
+                        && "true".equals(properties.get("waterlogged"));
+                }
+                if (palette.size() > 1 && blockStates.get("data") instanceof long[] data) {
+                    section.data = data;
+                    section.bits = Math.max(4, 32 - Integer.numberOfLeadingZeros(palette.size() - 1));
+                }
+            } else {
+                section.materials = new Material[] {Material.AIR};
+                section.waterlogged = new boolean[1];
+            }
+            sections[index] = section;
+        }
+        int[] highestBlocks = null;
+        if (nbt.get("Heightmaps") instanceof Map<?, ?> heightmaps
+            && heightmaps.get("WORLD_SURFACE") instanceof long[] data
+            && data.length > 0) {
+            highestBlocks = new int[256];
+            final int perLong = (256 + data.length - 1) / data.length;
+            final int bits = 64 / perLong;
+            final long mask = (1L << bits) - 1L;
+            for (int i = 0; i < 256; i += 1) {
+                final int value = (int) ((data[i / perLong] >>> ((i % perLong) * bits)) & mask);
+                // The height map holds the first free block above the
+                // highest one, relative to the world minimum.
+                highestBlocks[i] = value + (minSectionY << 4) - 1;
+            }
+        }
+        return new AnvilChunk(chunkX, chunkZ, minSectionY, sections, highestBlocks);
+    }
+
+    /**
+     * Unknown block names, such as blocks removed in a newer version,
+     * read as air.
+     */
+    private static Material toMaterial(String name) {
+        final Material material = Material.matchMaterial(name);
+        return material != null && material.isBlock()
+            ? material
+            : Material.AIR;
+    }
+
+    /**
+     * Create the cache for toMaterial, which every reader thread
+     * should keep on its own.
+     */
+    public static Map<String, Material> newMaterialCache() {
+        return new HashMap<>();
+    }
+
+    private Section getSection(int y) {
+        final int index = (y >> 4) - minSectionY;
+        if (index < 0 || index >= sections.length) return null;
+        return sections[index];
+    }
+
+    private static int blockIndex(int x, int y, int z) {
+        return ((y & 15) << 8) | ((z & 15) << 4) | (x & 15);
+    }
+
+    public Material getType(int x, int y, int z) {
+        final Section section = getSection(y);
+        if (section == null) return Material.AIR;
+        return section.materials[section.paletteIndex(blockIndex(x, y, z))];
+    }
+
+    public boolean isWaterlogged(int x, int y, int z) {
+        final Section section = getSection(y);
+        if (section == null) return false;
+        return section.waterlogged[section.paletteIndex(blockIndex(x, y, z))];
+    }
+
+    /**
+     * Sections without stored sky light count as sunlit above the
+     * highest block of the column, and dark below it.
+     */
+    public int getLightFromSky(int x, int y, int z) {
+        final Section section = getSection(y);
+        if (section == null || section.skyLight == null) {
+            return y > getHighestBlockY(x, z) ? 15 : 0;
+        }
+        final int index = blockIndex(x, y, z);
+        final int value = section.skyLight[index >> 1];
+        return (index & 1) == 0
+            ? value & 0xF
+            : (value >> 4) & 0xF;
+    }
+
+    public int getHighestBlockY(int x, int z) {
+        if (highestBlocks == null) return highestSectionTop;
+        return highestBlocks[((z & 15) << 4) | (x & 15)];
+    }
+}
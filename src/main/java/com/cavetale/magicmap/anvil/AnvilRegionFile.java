@@ -0,0 +1,106 @@
+package com.cavetale.magicmap.anvil;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+import lombok.Getter;
+
+/**
+ * Read chunks from one Anvil region file, r.x.z.mca.  The file
+ * starts with a table of 1024 chunk locations in 4096 byte sectors.
+ * Each chunk is stored as its length, a compression type, and the
+ * compressed NBT.  Chunks too large for the region file live in
+ * separate c.x.z.mcc files next to it.
+ *
+ * Instances are not thread safe.
+ */
+public final class AnvilRegionFile implements AutoCloseable {
+    private static final int SECTOR_SIZE = 4096;
+    private static final int COMPRESSION_GZIP = 1;
+    private static final int COMPRESSION_ZLIB = 2;
+    private static final int COMPRESSION_NONE = 3;
+    private static final int COMPRESSION_EXTERNAL = 0x80;
+    @Getter private final File file;
+    @Getter private final int regionX;
+    @Getter private final int regionZ;
+    private final RandomAccessFile raf;
+    private final int[] locations = new int[1024];
+
+    private AnvilRegionFile(final File file, final int regionX, final int regionZ) throws IOException {
+        this.file = file;
+        this.regionX = regionX;
+        this.regionZ = regionZ;
+        this.raf = new RandomAccessFile(file, "r");
+        if (raf.length() >= SECTOR_SIZE) {
+            for (int i = 0; i < locations.length; i += 1) {
+                locations[i] = raf.readInt();
+            }
+        }
+    }
+
+    /**
+     * Open the region file for the given region in a region folder.
+     *
+     * @return the region file or null if it does not exist
+     */
+    public static AnvilRegionFile open(File regionFolder, int regionX, int regionZ) throws IOException {
+        final File file = new File(regionFolder, "r." + regionX + "." + regionZ + ".mca");
+        if (!file.isFile()) return null;
+        return new AnvilRegionFile(file, regionX, regionZ);
+    }
+
+    /**
+     * Read the NBT of a chunk.
+     *
+     * @param localX the chunk x coordinate within the region, 0-31
+     * @param localZ the chunk z coordinate within the region, 0-31
+     * @return the chunk NBT or null if the chunk does not exist
+     */
+    public Map<String, Object> readChunk(int localX, int localZ) throws IOException {
+        final int location = locations[(localX & 31) + (localZ & 31) * 32];
+        if (location == 0) return null;
+        final long offset = (long) (location >>> 8) * SECTOR_SIZE;
+        if (offset + 5 > raf.length()) return null;
+        raf.seek(offset);
+        final int length = raf.readInt();
+        if (length <= 1) return null;
+        final int compression = raf.readUnsignedByte();
+        final byte[] data;
+        if ((compression & COMPRESSION_EXTERNAL) != 0) {
+            final int chunkX = (regionX << 5) + (localX & 31);
+            final int chunkZ = (regionZ << 5) + (localZ & 31);
+            final File external = new File(file.getParentFile(), "c." + chunkX + "." + chunkZ + ".mcc");
+            if (!external.isFile()) return null;
+            data = Files.readAllBytes(external.toPath());
+        } else {
+            data = new byte[length - 1];
+            raf.readFully(data);
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(decompress(compression & ~COMPRESSION_EXTERNAL, data)))) {
+            return NbtReader.readRoot(in);
+        }
+    }
+
+    private static InputStream decompress(int compression, byte[] data) throws IOException {
+        final InputStream in = new ByteArrayInputStream(data);
+        return switch (compression) {
+        case COMPRESSION_GZIP -> new GZIPInputStream(in);
+        case COMPRESSION_ZLIB -> new InflaterInputStream(in);
+        case COMPRESSION_NONE -> in;
+        default -> throw new IOException("Unsupported compression: " + compression);
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        raf.close();
+    }
+}
@@ -0,0 +1,104 @@
+package com.cavetale.magicmap.anvil;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read uncompressed NBT into plain Java objects.  Compounds become
+ * maps, lists become lists, arrays stay arrays, and numbers are
+ * boxed.  This is just enough to read chunks from region files
+ * without a running server.
+ */
+public final class NbtReader {
+    private static final int TAG_END = 0;
+    private static final int TAG_BYTE = 1;
+    private static final int TAG_SHORT = 2;
+    private static final int TAG_INT = 3;
+    private static final int TAG_LONG = 4;
+    private static final int TAG_FLOAT = 5;
+    private static final int TAG_DOUBLE = 6;
+    private static final int TAG_BYTE_ARRAY = 7;
+    private static final int TAG_STRING = 8;
+    private static final int TAG_LIST = 9;
+    private static final int TAG_COMPOUND = 10;
+    private static final int TAG_INT_ARRAY = 11;
+    private static final int TAG_LONG_ARRAY = 12;
+    private static final int MAX_DEPTH = 512;
+
+    private NbtReader() { }
+
+    /**
+     * Read the named root compound.
+     */
+    @SuppressWarnings("unchecked")
+    public static Map<String, Object> readRoot(DataInput in) throws IOException {
+        final int type = in.readUnsignedByte();
+        if (type != TAG_COMPOUND) {
+            throw new IOException("Root tag is not a compound: " + type);
+        }
+        in.readUTF();
+        return (Map<String, Object>) readPayload(in, type, 0);
+    }
+
+    private static Object readPayload(DataInput in, int type, int depth) throws IOException {
+        if (depth > MAX_DEPTH) throw new IOException("NBT too deep");
+        switch (type) {
+        case TAG_BYTE: return in.readByte();
+        case TAG_SHORT: return in.readShort();
+        case TAG_INT: return in.readInt();
+        case TAG_LONG: return in.readLong();
+        case TAG_FLOAT: return in.readFloat();
+        case TAG_DOUBLE: return in.readDouble();
+        case TAG_BYTE_ARRAY: {
+            final byte[] result = new byte[readLength(in)];
+            in.readFully(result);
+            return result;
+        }
+        case TAG_STRING: return in.readUTF();
+        case TAG_LIST: {
+            final int elementType = in.readUnsignedByte();
+            final int length = readLength(in);
+            final List<Object> result = new ArrayList<>(length);
+            for (int i = 0; i < length; i += 1) {
+                result.add(readPayload(in, elementType, depth + 1));
+            }
+            return result;
+        }
+        case TAG_COMPOUND: {
+            final Map<String, Object> result = new HashMap<>();
+            while (true) {
+                final int elementType = in.readUnsignedByte();
+                if (elementType == TAG_END) break;
+                final String name = in.readUTF();
+                result.put(name, readPayload(in, elementType, depth + 1));
+            }
+            return result;
+        }
+        case TAG_INT_ARRAY: {
+            final int[] result = new int[readLength(in)];
+            for (int i = 0; i < result.length; i += 1) {
+                result[i] = in.readInt();
+            }
+            return result;
+        }
+        case TAG_LONG_ARRAY: {
+            final long[] result = new long[readLength(in)];
+            for (int i = 0; i < result.length; i += 1) {
+                result[i] = in.readLong();
+            }
+            return result;
+        }
+        default: throw new IOException("Unknown tag type: " + type);
+        }
+    }
+
+    private static int readLength(DataInput in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) throw new IOException("Negative length: " + length);
+        return length;
+    }
+}
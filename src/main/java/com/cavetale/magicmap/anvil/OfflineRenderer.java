@@ -0,0 +1,200 @@
+package com.cavetale.magicmap.anvil;
+
+import com.cavetale.magicmap.RenderType;
+import com.cavetale.magicmap.file.MapImageRenderer;
+import com.cavetale.magicmap.file.PaletteImage;
+import com.cavetale.magicmap.file.WorldBorderCache;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.imageio.ImageIO;
+import lombok.RequiredArgsConstructor;
+import org.bukkit.Material;
+
+/**
+ * Render the map of a world straight from its region files, without
+ * a server and without loading any chunks.  The result are the same
+ * region images a full render writes into magicmap/<rendertype>/.
+ *
+ * Each region is rendered by one thread, which reads the region file
+ * itself plus the top row of chunks of the region below, needed for
+ * shading.  Regions are independent, so all cores can be kept busy.
+ *
+ * Run standalone with the Paper API and this plugin on the class
+ * path:
+ * java com.cavetale.magicmap.anvil.OfflineRenderer WORLD_FOLDER
+ *   [--region-folder DIR] [--min-y -64] [--max-y 320] [--threads N]
+ *   [surface] [cave] [nether]
+ */
+@RequiredArgsConstructor
+public final class OfflineRenderer {
+    private static final Pattern REGION_FILE_PATTERN = Pattern.compile("r\\.(-?[0-9]+)\\.(-?[0-9]+)\\.mca");
+    private final File regionFolder;
+    private final File magicMapFolder;
+    private final List<RenderType> renderTypes;
+    private final int minWorldY;
+    private final int maxWorldY;
+    private final Logger logger;
+    private final WorldBorderCache everywhere = new WorldBorderCache(0, 0,
+                                                                     Integer.MIN_VALUE, Integer.MIN_VALUE,
+                                                                     Integer.MAX_VALUE, Integer.MAX_VALUE);
+    private final ThreadLocal<Map<String, Material>> materialCache = ThreadLocal.withInitial(AnvilChunk::newMaterialCache);
+
+    public static void main(String[] args) throws Exception {
+        File worldFolder = null;
+        File regionFolder = null;
+        int minWorldY = -64;
+        int maxWorldY = 320;
+        int threads = Runtime.getRuntime().availableProcessors();
+        final List<RenderType> renderTypes = new ArrayList<>();
+        for (int i = 0; i < args.length; i += 1) {
+            final String arg = args[i];
+            switch (arg) {
+            case "--region-folder": regionFolder = new File(args[++i]); break;
+            case "--min-y": minWorldY = Integer.parseInt(args[++i]); break;
+            case "--max-y": maxWorldY = Integer.parseInt(args[++i]); break;
+            case "--threads": threads = Integer.parseInt(args[++i]); break;
+            default:
+                if (worldFolder == null) {
+                    worldFolder = new File(arg);
+                } else {
+                    renderTypes.add(RenderType.valueOf(arg.toUpperCase()));
+                }
+            }
+        }
+        if (worldFolder == null) {
+            System.err.println("Usage: OfflineRenderer WORLD_FOLDER [--region-folder DIR] [--min-y Y] [--max-y Y] [--threads N] [RENDER_TYPE...]");
+            System.exit(1);
+            return;
+        }
+        if (regionFolder == null) regionFolder = new File(worldFolder, "region");
+        if (renderTypes.isEmpty()) {
+            renderTypes.add(RenderType.SURFACE);
+            renderTypes.add(RenderType.CAVE);
+        }
+        final OfflineRenderer renderer = new OfflineRenderer(regionFolder, new File(worldFolder, "magicmap"),
+                                                             renderTypes, minWorldY, maxWorldY,
+                                                             Logger.getLogger("MagicMap"));
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            renderer.renderAll(executor);
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(1L, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * Find all regions with a region file.
+     */
+    public List<int[]> findRegions() {
+        final List<int[]> result = new ArrayList<>();
+        final File[] files = regionFolder.listFiles();
+        if (files == null) return result;
+        for (File file : files) {
+            final Matcher matcher = REGION_FILE_PATTERN.matcher(file.getName());
+            if (!matcher.matches()) continue;
+            result.add(new int[] {Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2))});
+        }
+        return result;
+    }
+
+    /**
+     * Render all regions in the executor and wait for them to finish.
+     * This blocks, so call it from a background thread if there is a
+     * server running.
+     *
+     * @return the number of regions rendered
+     */
+    public int renderAll(ExecutorService executor) throws InterruptedException {
+        final List<int[]> regions = findRegions();
+        logger.info("[Offline] Rendering " + regions.size() + " regions from " + regionFolder + " to " + magicMapFolder);
+        final long startTime = System.currentTimeMillis();
+        final AtomicInteger done = new AtomicInteger();
+        final List<Future<?>> futures = new ArrayList<>(regions.size());
+        for (int[] region : regions) {
+            futures.add(executor.submit(() -> {
+                        try {
+                            renderRegion(region[0], region[1]);
+                        } catch (IOException | RuntimeException e) {
+                            logger.log(Level.SEVERE, "[Offline] Region " + region[0] + "," + region[1], e);
+                        }
+                        final int count = done.incrementAndGet();
+                        if (count % 100 == 0) {
+                            logger.info("[Offline] " + count + "/" + regions.size() + " regions");
+                        }
+                    }));
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException ee) {
+                logger.log(Level.SEVERE, "[Offline] renderAll", ee);
+            }
+        }
+        logger.info("[Offline] Rendered " + done.get() + " regions in "
+                    + ((System.currentTimeMillis() - startTime) / 1000L) + "s");
+        return done.get();
+    }
+
+    /**
+     * Render one region into all render types and write the images.
+     */
+    public void renderRegion(int regionX, int regionZ) throws IOException {
+        final AnvilBlockSource source = new AnvilBlockSource(minWorldY);
+        try (AnvilRegionFile regionFile = AnvilRegionFile.open(regionFolder, regionX, regionZ)) {
+            if (regionFile == null) return;
+            for (int z = 0; z < 32; z += 1) {
+                for (int x = 0; x < 32; x += 1) {
+                    readChunk(regionFile, x, z, source);
+                }
+            }
+        }
+        // The top row of the region below, for shading
+        try (AnvilRegionFile regionFile = AnvilRegionFile.open(regionFolder, regionX, regionZ + 1)) {
+            if (regionFile != null) {
+                for (int x = 0; x < 32; x += 1) {
+                    readChunk(regionFile, x, 0, source);
+                }
+            }
+        }
+        final MapImageRenderer renderer = new MapImageRenderer(source, minWorldY, maxWorldY,
+                                                               regionX << 9, regionZ << 9, 512, 512,
+                                                               everywhere);
+        for (RenderType renderType : renderTypes) {
+            renderer.addTarget(renderType, new PaletteImage(512, 512), null);
+        }
+        renderer.run();
+        for (MapImageRenderer.Target target : renderer.getTargets()) {
+            final File folder = new File(magicMapFolder, target.getRenderType().name().toLowerCase());
+            folder.mkdirs();
+            ImageIO.write(target.getImage().toBufferedImage(), "png", new File(folder, "r." + regionX + "." + regionZ + ".png"));
+        }
+    }
+
+    /**
+     * A broken chunk is logged and left out, so it renders empty.
+     */
+    private void readChunk(AnvilRegionFile regionFile, int localX, int localZ, AnvilBlockSource source) {
+        try {
+            final Map<String, Object> nbt = regionFile.readChunk(localX, localZ);
+            if (nbt == null) return;
+            final AnvilChunk chunk = AnvilChunk.of(nbt, materialCache.get());
+            if (chunk != null) source.put(chunk);
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.WARNING, "[Offline] " + regionFile.getFile() + " chunk " + localX + "," + localZ, e);
+        }
+    }
+}
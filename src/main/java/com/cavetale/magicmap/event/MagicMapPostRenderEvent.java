@@ -3,6 +3,7 @@ package com.cavetale.magicmap.event;
 import com.cavetale.core.struct.Vec2i;
 import com.cavetale.magicmap.MagicMapScale;
 import com.cavetale.magicmap.Rendered;
+import com.cavetale.magicmap.file.IntImage;
 import com.cavetale.magicmap.file.WorldBorderCache;
 import java.awt.image.BufferedImage;
 import lombok.Getter;
@@ -20,6 +21,18 @@ public final class MagicMapPostRenderEvent extends Event {
     private final Player player;
     private final Rendered rendered;
     private final BufferedImage image;
+    private IntImage pixels;
+
+    /**
+     * Direct access to the pixel array of the image, for fast
+     * drawing.
+     */
+    public IntImage getPixels() {
+        if (pixels == null) {
+            pixels = IntImage.of(image);
+        }
+        return pixels;
+    }
 
     public WorldBorderCache getMapArea() {
         return rendered.getMapArea();
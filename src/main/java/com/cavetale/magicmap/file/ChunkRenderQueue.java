@@ -0,0 +1,291 @@
+package com.cavetale.magicmap.file;
+
+import com.cavetale.core.struct.Vec2i;
+import com.cavetale.magicmap.RenderType;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import lombok.Value;
+
+/**
+ * Chunks waiting to be rerendered, grouped by region.  Each region
+ * keeps one bit per chunk, so adding, removing and checking a chunk
+ * take constant time, and duplicates are impossible.  Regions are
+ * kept in the order they were first queued, and a ChunkRenderTask
+ * takes all queued chunks of one region at a time.
+ *
+ * Which region goes next depends on the viewers: the region closest
+ * to a map holder or web viewer wins.  Every region earns a bonus
+ * for the time it has been waiting, so distant regions still get
+ * their turn.  Without viewers, this is first come first served.
+ *
+ * A chunk may be queued whole, or only some of its 256 columns, as
+ * one bit per column in a mask of four longs.  Column index is
+ * (z & 15) * 16 + (x & 15).  Each chunk also remembers which
+ * RenderTypes need it, as one bit per RenderType ordinal.
+ */
+public final class ChunkRenderQueue {
+    private final Map<Long, Bucket> regions = new LinkedHashMap<>();
+    private int size;
+
+    private static final class Bucket {
+        private final BitSet bits = new BitSet(1024);
+        private final long queuedTime = System.currentTimeMillis();
+        // Column masks of partially queued chunks, null if the whole
+        // chunk is queued.
+        private final long[][] columns = new long[1024][];
+        private final int[] renderTypes = new int[1024];
+    }
+
+    /**
+     * A chunk taken off the queue.
+     */
+    @Value
+    public static class QueuedChunk {
+        private final Vec2i chunk;
+        /** The column mask, or null to render the whole chunk. */
+        private final long[] columns;
+        /** Bits of the RenderType ordinals to render. */
+        private final int renderTypes;
+
+        public static QueuedChunk whole(Vec2i chunk) {
+            return new QueuedChunk(chunk, null, ALL_RENDER_TYPES);
+        }
+
+        public boolean hasRenderType(RenderType renderType) {
+            return (renderTypes & renderTypeBit(renderType)) != 0;
+        }
+    }
+
+    public static final int ALL_RENDER_TYPES = -1;
+
+    public static int renderTypeBit(RenderType renderType) {
+        return 1 << renderType.ordinal();
+    }
+
+    public static long regionKey(int regionX, int regionZ) {
+        return ((long) regionX << 32) | ((long) regionZ & 0xFFFFFFFFL);
+    }
+
+    private static int chunkIndex(int chunkX, int chunkZ) {
+        return (chunkX & 31) | ((chunkZ & 31) << 5);
+    }
+
+    public static int columnIndex(int blockX, int blockZ) {
+        return (blockX & 15) | ((blockZ & 15) << 4);
+    }
+
+    /**
+     * Queue the whole chunk.
+     *
+     * @return true if the chunk was added, false if it was already
+     *   queued whole.
+     */
+    public boolean add(int chunkX, int chunkZ) {
+        final Bucket bucket = regions.computeIfAbsent(regionKey(chunkX >> 5, chunkZ >> 5), k -> new Bucket());
+        final int index = chunkIndex(chunkX, chunkZ);
+        if (bucket.bits.get(index)) {
+            if (bucket.columns[index] == null && bucket.renderTypes[index] == ALL_RENDER_TYPES) return false;
+            bucket.columns[index] = null;
+            bucket.renderTypes[index] = ALL_RENDER_TYPES;
+            return true;
+        }
+        bucket.bits.set(index);
+        bucket.renderTypes[index] = ALL_RENDER_TYPES;
+        size += 1;
+        return true;
+    }
+
+    /**
+     * Queue one column of a chunk for some RenderTypes.
+     *
+     * @param renderTypes the RenderType bits, see renderTypeBit
+     * @return true if the column was added, false if it or its whole
+     *   chunk was already queued for these RenderTypes.
+     */
+    public boolean addColumn(int blockX, int blockZ, int renderTypes) {
+        final int chunkX = blockX >> 4;
+        final int chunkZ = blockZ >> 4;
+        final Bucket bucket = regions.computeIfAbsent(regionKey(chunkX >> 5, chunkZ >> 5), k -> new Bucket());
+        final int index = chunkIndex(chunkX, chunkZ);
+        final int column = columnIndex(blockX, blockZ);
+        if (!bucket.bits.get(index)) {
+            bucket.bits.set(index);
+            bucket.columns[index] = new long[4];
+            size += 1;
+        }
+        final int oldRenderTypes = bucket.renderTypes[index];
+        bucket.renderTypes[index] = oldRenderTypes | renderTypes;
+        final boolean newRenderTypes = (oldRenderTypes | renderTypes) != oldRenderTypes;
+        final long[] mask = bucket.columns[index];
+        if (mask == null) return newRenderTypes;
+        final long bit = 1L << column;
+        if ((mask[column >> 6] & bit) != 0) return newRenderTypes;
+        mask[column >> 6] |= bit;
+        return true;
+    }
+
+    /**
+     * @return true if the chunk was removed, false if it was not
+     *   queued.
+     */
+    public boolean remove(int chunkX, int chunkZ) {
+        final long key = regionKey(chunkX >> 5, chunkZ >> 5);
+        final Bucket bucket = regions.get(key);
+        if (bucket == null) return false;
+        final int index = chunkIndex(chunkX, chunkZ);
+        if (!bucket.bits.get(index)) return false;
+        bucket.bits.clear(index);
+        bucket.columns[index] = null;
+        bucket.renderTypes[index] = 0;
+        size -= 1;
+        if (bucket.bits.isEmpty()) regions.remove(key);
+        return true;
+    }
+
+    /**
+     * Move all queued chunks into another queue, keeping their column
+     * masks and RenderTypes, and clear this one.
+     */
+    public void drainInto(ChunkRenderQueue target) {
+        for (Map.Entry<Long, Bucket> entry : regions.entrySet()) {
+            final int regionX = (int) (entry.getKey() >> 32);
+            final int regionZ = (int) (long) entry.getKey();
+            final Bucket bucket = entry.getValue();
+            for (int index = bucket.bits.nextSetBit(0); index >= 0; index = bucket.bits.nextSetBit(index + 1)) {
+                target.merge((regionX << 5) | (index & 31), (regionZ << 5) | (index >> 5),
+                             bucket.columns[index], bucket.renderTypes[index]);
+            }
+        }
+        clear();
+    }
+
+    private void merge(int chunkX, int chunkZ, long[] columns, int renderTypes) {
+        final Bucket bucket = regions.computeIfAbsent(regionKey(chunkX >> 5, chunkZ >> 5), k -> new Bucket());
+        final int index = chunkIndex(chunkX, chunkZ);
+        if (!bucket.bits.get(index)) {
+            bucket.bits.set(index);
+            bucket.columns[index] = columns;
+            bucket.renderTypes[index] = renderTypes;
+            size += 1;
+            return;
+        }
+        bucket.renderTypes[index] |= renderTypes;
+        final long[] mask = bucket.columns[index];
+        if (mask == null) return;
+        if (columns == null) {
+            bucket.columns[index] = null;
+            return;
+        }
+        for (int i = 0; i < mask.length; i += 1) {
+            mask[i] |= columns[i];
+        }
+    }
+
+    public boolean remove(Vec2i chunk) {
+        return remove(chunk.x, chunk.z);
+    }
+
+    public boolean contains(int chunkX, int chunkZ) {
+        final Bucket bucket = regions.get(regionKey(chunkX >> 5, chunkZ >> 5));
+        return bucket != null && bucket.bits.get(chunkIndex(chunkX, chunkZ));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int getRegionCount() {
+        return regions.size();
+    }
+
+    public void clear() {
+        regions.clear();
+        size = 0;
+    }
+
+    /**
+     * Get the chunks of the region which should be rendered next,
+     * without removing them.  A region scores its distance to the
+     * closest viewer, in chunks, minus one chunk for every
+     * agingMillis it has been waiting.  The lowest score wins, and
+     * ties go to the older region.
+     *
+     * @param viewers the block coordinates of all viewers in this
+     *   world
+     * @param agingMillis the waiting time worth one chunk of
+     *   distance, or 0 to disable aging
+     */
+    public List<Vec2i> peekRegion(List<Vec2i> viewers, long agingMillis) {
+        final Iterator<Map.Entry<Long, Bucket>> iter = regions.entrySet().iterator();
+        if (!iter.hasNext()) return List.of();
+        Map.Entry<Long, Bucket> best = iter.next();
+        if (!viewers.isEmpty()) {
+            final long now = System.currentTimeMillis();
+            double bestScore = score(best, viewers, now, agingMillis);
+            while (iter.hasNext()) {
+                final Map.Entry<Long, Bucket> entry = iter.next();
+                final double score = score(entry, viewers, now, agingMillis);
+                if (score < bestScore) {
+                    best = entry;
+                    bestScore = score;
+                }
+            }
+        }
+        final int regionX = (int) (best.getKey() >> 32);
+        final int regionZ = (int) (long) best.getKey();
+        final BitSet bits = best.getValue().bits;
+        final List<Vec2i> result = new ArrayList<>(bits.cardinality());
+        for (int index = bits.nextSetBit(0); index >= 0; index = bits.nextSetBit(index + 1)) {
+            result.add(Vec2i.of((regionX << 5) | (index & 31), (regionZ << 5) | (index >> 5)));
+        }
+        return result;
+    }
+
+    /**
+     * Remove the chunks of the region which should be rendered next,
+     * see peekRegion.  Chunks queued again while they are being
+     * rendered will be rendered again.
+     */
+    public List<QueuedChunk> pollRegion(List<Vec2i> viewers, long agingMillis) {
+        final List<Vec2i> chunks = peekRegion(viewers, agingMillis);
+        final List<QueuedChunk> result = new ArrayList<>(chunks.size());
+        for (Vec2i chunk : chunks) {
+            final Bucket bucket = regions.get(regionKey(chunk.x >> 5, chunk.z >> 5));
+            final int index = chunkIndex(chunk.x, chunk.z);
+            result.add(new QueuedChunk(chunk, bucket.columns[index], bucket.renderTypes[index]));
+            remove(chunk.x, chunk.z);
+        }
+        return result;
+    }
+
+    /**
+     * Distance from the closest viewer to the edge of the region, in
+     * chunks, minus the aging bonus.
+     */
+    private static double score(Map.Entry<Long, Bucket> entry, List<Vec2i> viewers, long now, long agingMillis) {
+        final int minX = (int) (entry.getKey() >> 32) << 5;
+        final int minZ = (int) (long) entry.getKey() << 5;
+        final int maxX = minX + 31;
+        final int maxZ = minZ + 31;
+        long min = Long.MAX_VALUE;
+        for (Vec2i viewer : viewers) {
+            final int cx = viewer.x >> 4;
+            final int cz = viewer.z >> 4;
+            final long dx = cx < minX ? minX - cx : (cx > maxX ? cx - maxX : 0);
+            final long dz = cz < minZ ? minZ - cz : (cz > maxZ ? cz - maxZ : 0);
+            min = Math.min(min, dx * dx + dz * dz);
+        }
+        final double age = agingMillis > 0
+            ? (double) (now - entry.getValue().queuedTime) / (double) agingMillis
+            : 0.0;
+        return Math.sqrt((double) min) - age;
+    }
+}
@@ -1,18 +1,19 @@
 package com.cavetale.magicmap.file;
 
 import com.cavetale.core.struct.Vec2i;
-import com.cavetale.magicmap.RenderType;
-import java.awt.Graphics2D;
-import java.awt.image.BufferedImage;
+import com.cavetale.magicmap.file.ChunkRenderQueue.QueuedChunk;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.function.Consumer;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import net.kyori.adventure.text.Component;
+import org.bukkit.ChunkSnapshot;
 import org.bukkit.World;
 import static com.cavetale.magicmap.MagicMapPlugin.plugin;
 import static net.kyori.adventure.text.Component.empty;
@@ -25,6 +26,10 @@ import static net.kyori.adventure.text.format.NamedTextColor.*;
  * Store some state info for rendering or refreshing of chunks.  This
  * is used by WorldFileCache and WorldRenderCache for their respective
  * obligations.
+ *
+ * Each chunk gets one renderer for all of its render types, so every
+ * column is scanned only once.  The renderer writes straight into the
+ * region images, which must be loaded before it starts.
  */
 @Getter
 @RequiredArgsConstructor
@@ -34,22 +39,28 @@ public final class ChunkRenderTask {
     private State state = State.IDLE;
     private final List<Vec2i> chunksToRender = new ArrayList<>();
     private final List<Vec2i> chunksToLoad = new ArrayList<>();
-    private List<TypeSpecific> renderTypes;
+    private List<WorldRenderCache> renderCaches;
+    private final List<QueuedChunk> chunksNotRendered = new ArrayList<>();
+    private final List<ChunkRender> renderingChunks = new ArrayList<>();
+    private final List<ChunkRender> asyncChunks = new ArrayList<>();
+    private final List<ChunkRender> pastingChunks = new ArrayList<>();
     private String debugMessage;
+    // Async rendering from chunk snapshots
+    private final boolean async = plugin().isAsyncRender();
+    private final Map<Vec2i, ChunkSnapshot> snapshotCache = new HashMap<>();
 
+    /**
+     * One chunk being rendered for some render types.  The renderer
+     * has one target per WorldRenderCache, in the same order, writing
+     * into the image of the RegionFileCache at the same index.  Those
+     * are pinned until the chunk is pasted.
+     */
     @RequiredArgsConstructor
-    private static final class TypeSpecific {
-        private final WorldRenderCache worldRenderCache;
-        private final RenderType renderType;
-        private final List<Vec2i> chunksNotRendered;
-        private final List<RendererPair> renderingChunks = new ArrayList<>();
-        private final List<RendererPair> pastingChunks = new ArrayList<>();
-    }
-
-    @RequiredArgsConstructor
-    private static final class RendererPair {
-        private final Vec2i chunk;
+    private static final class ChunkRender {
+        private final QueuedChunk queued;
         private final MapImageRenderer renderer;
+        private final List<WorldRenderCache> renderCaches;
+        private final List<RegionFileCache> regionFileCaches;
     }
 
     public enum State {
@@ -60,21 +71,13 @@ public final class ChunkRenderTask {
     }
 
     public Component getInfoComponent() {
-        int chunksNotRenderedCount = 0;
-        int renderingChunksCount = 0;
-        int pastingChunksCount = 0;
-        if (renderTypes != null) {
-            for (var it : renderTypes) {
-                chunksNotRenderedCount += it.chunksNotRendered.size();
-                renderingChunksCount += it.renderingChunks.size();
-                pastingChunksCount += it.pastingChunks.size();
-            }
-        }
         return textOfChildren(text(state.name(), YELLOW),
                               space(),
-                              text("toRender:", GRAY), text(chunksNotRenderedCount), text("/", DARK_GRAY), text(chunksToRender.size()),
+                              text("toRender:", GRAY), text(chunksNotRendered.size()), text("/", DARK_GRAY), text(chunksToRender.size()),
+                              space(),
+                              text("async:", GRAY), text(asyncChunks.size()),
                               space(),
-                              text("toPaste:", GRAY), text(pastingChunksCount),
+                              text("toPaste:", GRAY), text(pastingChunks.size()),
                               (debugMessage != null
                                ? text(" " + debugMessage, RED)
                                : empty()));
@@ -84,74 +87,88 @@ public final class ChunkRenderTask {
      * Pick some chunks and start holding them.
      *
      * @param worldRenderCacheList the WorldRenderCache instances to render
-     * @param allQueuedChunks All queued chunks, either from the
-     *   WorldFileCache or the WorldRenderCache issuing this.
+     * @param regionChunks The queued chunks of one region, either
+     *   from the WorldFileCache or the WorldRenderCache issuing this.
+     *   Loading one region of chunks lets them benefit from each
+     *   others' neighborhood.
+     */
+    public void init(List<WorldRenderCache> worldRenderCacheList, List<Vec2i> regionChunks) {
+        final List<QueuedChunk> queuedChunks = new ArrayList<>(regionChunks.size());
+        for (Vec2i chunk : regionChunks) {
+            queuedChunks.add(QueuedChunk.whole(chunk));
+        }
+        initQueued(worldRenderCacheList, queuedChunks);
+    }
+
+    /**
+     * Render chunks taken off a ChunkRenderQueue, some of them only
+     * in part or only for some RenderTypes.
      */
-    public void init(List<WorldRenderCache> worldRenderCacheList, List<Vec2i> allQueuedChunks) {
+    public void initQueued(List<WorldRenderCache> worldRenderCacheList, List<QueuedChunk> queuedChunks) {
         assert state == State.IDLE;
-        // Load one region of chunks so they benefit from each others'
-        // neighborhood.
-        Vec2i pivot = allQueuedChunks.get(0);
-        final int regionX = pivot.x >> 5;
-        final int regionZ = pivot.z >> 5;
-        chunksToRender.add(pivot);
-        for (int i = 1; i < allQueuedChunks.size(); i += 1) {
-            final Vec2i chunk = allQueuedChunks.get(i);
-            if ((chunk.x >> 5) != regionX || (chunk.z >> 5) != regionZ) {
-                continue;
-            }
-            chunksToRender.add(chunk);
+        renderCaches = worldRenderCacheList;
+        for (QueuedChunk it : queuedChunks) {
+            chunksToRender.add(it.getChunk());
+            chunksNotRendered.add(it);
         }
         final Set<Vec2i> chunksToLoadSet = new HashSet<>(chunksToRender);
-        for (Vec2i it : chunksToRender) {
-            chunksToLoadSet.add(it.add(0, 1));
+        for (QueuedChunk it : queuedChunks) {
+            if (needsChunkBelow(it)) {
+                chunksToLoadSet.add(it.getChunk().add(0, 1));
+            }
         }
         chunksToLoad.addAll(chunksToLoadSet);
         for (Vec2i chunk : chunksToLoad) {
             worldFileCache.holdChunk(chunk);
         }
-        renderTypes = new ArrayList<>(worldRenderCacheList.size());
-        for (WorldRenderCache worldRenderCache : worldRenderCacheList) {
-            renderTypes.add(new TypeSpecific(worldRenderCache, worldRenderCache.getRenderType(), new ArrayList<>(chunksToRender)));
-        }
         state = State.RENDER_CHUNKS;
     }
 
+    /**
+     * The bottom row of a chunk is shaded by the chunk below it.
+     */
+    private static boolean needsChunkBelow(QueuedChunk queued) {
+        final long[] mask = queued.getColumns();
+        return mask == null || (mask[3] >>> 48) != 0L;
+    }
+
     public boolean isDone() {
         return state == State.DONE;
     }
 
-    public void tick(final long startTime) {
+    public void tick(final long deadlineNanos) {
         assert state == State.RENDER_CHUNKS;
-        final long stopTime = startTime + 25L;
         final World world = worldFileCache.getWorld();
         boolean didAnything = false;
-        for (TypeSpecific typeSpecific : renderTypes) {
-            if (!typeSpecific.chunksNotRendered.isEmpty()) {
-                didAnything = true;
-                prepareRendererType(world, typeSpecific);
+        if (!chunksNotRendered.isEmpty()) {
+            didAnything = true;
+            prepareRenderers(world, deadlineNanos);
+        }
+        while (!renderingChunks.isEmpty()) {
+            didAnything = true;
+            final ChunkRender chunkRender = renderingChunks.get(0);
+            if (render(chunkRender, deadlineNanos)) {
+                renderingChunks.remove(0);
+                pastingChunks.add(chunkRender);
             }
+            if (System.nanoTime() >= deadlineNanos) return;
         }
-        for (TypeSpecific typeSpecific : renderTypes) {
-            while (!typeSpecific.renderingChunks.isEmpty()) {
-                didAnything = true;
-                final RendererPair pair = typeSpecific.renderingChunks.get(0);
-                if (renderType(typeSpecific, pair, stopTime)) {
-                    typeSpecific.renderingChunks.remove(pair);
-                    typeSpecific.pastingChunks.add(pair);
-                }
-                if (System.currentTimeMillis() >= stopTime) return;
+        if (!asyncChunks.isEmpty()) {
+            didAnything = true;
+            for (Iterator<ChunkRender> iter = asyncChunks.iterator(); iter.hasNext();) {
+                final ChunkRender chunkRender = iter.next();
+                if (!chunkRender.renderer.isFinished()) continue;
+                iter.remove();
+                pastingChunks.add(chunkRender);
             }
         }
-        for (TypeSpecific typeSpecific : renderTypes) {
-            while (!typeSpecific.pastingChunks.isEmpty()) {
-                didAnything = true;
-                for (Iterator<RendererPair> iter = typeSpecific.pastingChunks.iterator(); iter.hasNext();) {
-                    if (pasteType(typeSpecific, iter.next())) {
-                        iter.remove();
-                    }
-                    if (System.currentTimeMillis() >= stopTime) return;
+        while (!pastingChunks.isEmpty()) {
+            didAnything = true;
+            for (Iterator<ChunkRender> iter = pastingChunks.iterator(); iter.hasNext();) {
+                if (paste(iter.next())) {
+                    iter.remove();
                 }
+                if (System.nanoTime() >= deadlineNanos) return;
             }
         }
         if (!didAnything) {
@@ -160,11 +177,14 @@ public final class ChunkRenderTask {
         }
     }
 
-    private void prepareRendererType(World world, TypeSpecific typeSpecific) {
-        for (Iterator<Vec2i> iter = typeSpecific.chunksNotRendered.iterator(); iter.hasNext();) {
-            final Vec2i chunk = iter.next();
+    private void prepareRenderers(World world, final long deadlineNanos) {
+        for (Iterator<QueuedChunk> iter = chunksNotRendered.iterator(); iter.hasNext();) {
+            if (async && System.nanoTime() >= deadlineNanos) return;
+            final QueuedChunk queued = iter.next();
+            final Vec2i chunk = queued.getChunk();
             final Vec2i chunkBelow = chunk.add(0, 1);
-            if (!world.isChunkLoaded(chunk.x, chunk.z) || !world.isChunkLoaded(chunkBelow.x, chunkBelow.z)) {
+            final boolean needsChunkBelow = needsChunkBelow(queued);
+            if (!world.isChunkLoaded(chunk.x, chunk.z) || (needsChunkBelow && !world.isChunkLoaded(chunkBelow.x, chunkBelow.z))) {
                 debugMessage = "" + chunk + "=" + world.isChunkLoaded(chunk.x, chunk.z)
                     + "/" + chunksToLoad.contains(chunk)
                     + "/" + worldFileCache.getChunkTicketMap().get(chunk)
@@ -175,52 +195,121 @@ public final class ChunkRenderTask {
                     + "/" + worldFileCache.getChunksLoading().contains(chunkBelow);
                 continue;
             }
+            final Vec2i region = Vec2i.of(chunk.x >> 5, chunk.z >> 5);
+            final List<WorldRenderCache> chunkRenderCaches = new ArrayList<>(renderCaches.size());
+            final List<RegionFileCache> regionFileCaches = new ArrayList<>(renderCaches.size());
+            for (WorldRenderCache it : renderCaches) {
+                if (!queued.hasRenderType(it.getRenderType())) continue;
+                chunkRenderCaches.add(it);
+                regionFileCaches.add(it.pollRegion(region));
+            }
+            if (!allLoaded(regionFileCaches)) {
+                debugMessage = "Waiting on region " + region;
+                continue;
+            }
             debugMessage = null;
             iter.remove();
-            final MapImageRenderer renderer = new MapImageRenderer(world,
-                                                                   new BufferedImage(16, 16, BufferedImage.TYPE_INT_ARGB),
-                                                                   typeSpecific.renderType,
-                                                                   chunk.x << 4, chunk.z << 4, 16, 16,
-                                                                   worldFileCache.getWorldBorder());
-            final RendererPair pair = new RendererPair(chunk, renderer);
-            typeSpecific.renderingChunks.add(pair);
+            if (chunkRenderCaches.isEmpty()) continue;
+            final MapImageRenderer renderer;
+            if (async) {
+                final ChunkSnapshotBlockSource source = new ChunkSnapshotBlockSource(world);
+                source.put(chunk.x, chunk.z, getSnapshot(world, chunk));
+                if (needsChunkBelow) {
+                    source.put(chunkBelow.x, chunkBelow.z, getSnapshot(world, chunkBelow));
+                }
+                renderer = new MapImageRenderer(source, world.getMinHeight(), world.getMaxHeight(),
+                                                chunk.x << 4, chunk.z << 4, 16, 16,
+                                                worldFileCache.getWorldBorder());
+            } else {
+                renderer = new MapImageRenderer(world,
+                                                chunk.x << 4, chunk.z << 4, 16, 16,
+                                                worldFileCache.getWorldBorder());
+            }
+            renderer.pixelMask(queued.getColumns());
+            final int offsetX = (chunk.x << 4) & 0x1FF;
+            final int offsetY = (chunk.z << 4) & 0x1FF;
+            for (int i = 0; i < chunkRenderCaches.size(); i += 1) {
+                final RegionFileCache regionFileCache = regionFileCaches.get(i);
+                renderer.addTarget(chunkRenderCaches.get(i).getRenderType(), regionFileCache.getImage(),
+                                   offsetX, offsetY, RegionFileCache.createRenderFloors(16, 16));
+            }
+            final ChunkRender chunkRender = new ChunkRender(queued, renderer, chunkRenderCaches, regionFileCaches);
+            for (RegionFileCache it : regionFileCaches) {
+                it.pin();
+            }
+            if (async) {
+                asyncChunks.add(chunkRender);
+                plugin().getWorlds().submitRenderer(renderer, "ChunkRenderTask " + worldFileCache.getName() + " " + chunk);
+            } else {
+                renderingChunks.add(chunkRender);
+            }
         }
     }
 
     /**
-     * Render the first chunk from the renderingChunks queue.  Move it
-     * to the pastingChunks queue when it's done.
+     * Snapshots are shared by all render types, and by neighboring
+     * chunks which need the chunk below for shading.
      */
-    private boolean renderType(TypeSpecific typeSpecific, RendererPair pair, final long stopTime) {
-        while (!pair.renderer.isFinished()) {
-            ChunkLoadListener.chunkLoadListener().setCallback(c -> {
-                    plugin().getLogger().warning("[ChunkLoad] ChunkRenderTask#renderType"
-                                                 + " " + worldFileCache.getName() + "/" + typeSpecific.renderType
-                                                 + " " + pair.chunk
-                                                 + " " + Vec2i.of(c));
-                });
-            pair.renderer.run(16);
-            ChunkLoadListener.chunkLoadListener().setCallback(null);
-            if (System.currentTimeMillis() >= stopTime) break;
+    private ChunkSnapshot getSnapshot(World world, Vec2i chunk) {
+        return snapshotCache.computeIfAbsent(chunk, c -> ChunkSnapshotBlockSource.captureSnapshot(world, c.x, c.z));
+    }
+
+    /**
+     * Render a chunk in the main thread until it is done or the time
+     * is up.
+     */
+    private boolean render(ChunkRender chunkRender, final long deadlineNanos) {
+        ChunkLoadListener.chunkLoadListener().setCallback(c -> {
+                plugin().getLogger().warning("[ChunkLoad] ChunkRenderTask#render"
+                                             + " " + worldFileCache.getName()
+                                             + " " + chunkRender.queued.getChunk()
+                                             + " " + Vec2i.of(c));
+            });
+        chunkRender.renderer.runUntil(deadlineNanos);
+        ChunkLoadListener.chunkLoadListener().setCallback(null);
+        return chunkRender.renderer.isFinished();
+    }
+
+    private static boolean allLoaded(List<RegionFileCache> regionFileCaches) {
+        for (RegionFileCache it : regionFileCaches) {
+            if (it.getState() != RegionFileCache.State.LOADED) return false;
         }
-        return pair.renderer.isFinished();
+        return true;
     }
 
-    private boolean pasteType(TypeSpecific typeSpecific, RendererPair pair) {
-        final Vec2i region = Vec2i.of(pair.chunk.x >> 5, pair.chunk.z >> 5);
-        final RegionFileCache regionFileCache = typeSpecific.worldRenderCache.loadRegion(region);
-        if (regionFileCache.getState() != RegionFileCache.State.LOADED) return false;
-        final Graphics2D gfx = regionFileCache.getImage().createGraphics();
-        final int offsetX = (pair.chunk.x << 4) & 0x1FF;
-        final int offsetY = (pair.chunk.z << 4) & 0x1FF;
-        gfx.drawImage(pair.renderer.getImage(), offsetX, offsetY, null);
-        gfx.dispose();
-        regionFileCache.setChunkRendered(pair.chunk.x, pair.chunk.z, true);
-        chunkRemoveCallback.accept(pair.chunk);
+    /**
+     * The renderer already wrote into the region images.  Mark the
+     * chunk as rendered, and dirty so it gets saved.  Pinned regions
+     * should never be unloaded, but if one was, the render went into
+     * a detached image and the chunk is queued again.
+     */
+    private boolean paste(ChunkRender chunkRender) {
+        final Vec2i chunk = chunkRender.queued.getChunk();
+        final Vec2i region = Vec2i.of(chunk.x >> 5, chunk.z >> 5);
+        for (int i = 0; i < chunkRender.renderCaches.size(); i += 1) {
+            final WorldRenderCache worldRenderCache = chunkRender.renderCaches.get(i);
+            final RegionFileCache regionFileCache = chunkRender.regionFileCaches.get(i);
+            regionFileCache.unpin();
+            if (worldRenderCache.getRegion(region) != regionFileCache || !regionFileCache.getState().isLoaded()) {
+                plugin().getLogger().warning("[ChunkRenderTask] Region unloaded during render: " + worldFileCache.getName()
+                                             + "/" + worldRenderCache.getRenderType() + " " + chunk);
+                if (worldRenderCache.isPersistent()) {
+                    worldFileCache.requestChunkRerender(chunk.x, chunk.z);
+                }
+            } else {
+                final MapImageRenderer.Target target = chunkRender.renderer.getTargets().get(i);
+                regionFileCache.mergeFloors(target.getFloors(), target.getOriginX(), target.getOriginY(), 16,
+                                            chunkRender.queued.getColumns() == null);
+                regionFileCache.setChunkRendered(chunk.x, chunk.z, true);
+                worldRenderCache.markChunkDirty(regionFileCache, chunk.x, chunk.z);
+            }
+            chunkRemoveCallback.accept(chunk);
+        }
         return true;
     }
 
     private void finishUp() {
+        snapshotCache.clear();
         for (Vec2i chunk : chunksToLoad) {
             worldFileCache.unholdChunk(chunk);
         }
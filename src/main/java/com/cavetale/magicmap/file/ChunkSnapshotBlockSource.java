@@ -0,0 +1,146 @@
+package com.cavetale.magicmap.file;
+
+import java.util.HashMap;
+import java.util.Map;
+import lombok.RequiredArgsConstructor;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.data.Waterlogged;
+
+/**
+ * Read blocks from chunk snapshots.  The snapshots are captured in
+ * the main thread via capture().  Once all of them are in, this
+ * object is handed to a render thread and must no longer be
+ * modified.
+ *
+ * Blocks in chunks which were not captured read as air.
+ */
+public final class ChunkSnapshotBlockSource implements MapBlockSource {
+    private final World world;
+    private final int minWorldY;
+    private final int maxWorldY;
+    private final Map<Long, Captured> snapshots = new HashMap<>();
+
+    @RequiredArgsConstructor
+    private static final class Captured {
+        private final ChunkSnapshot snapshot;
+        /** The top of the highest non-empty section. */
+        private final int highestBlockY;
+    }
+
+    public ChunkSnapshotBlockSource(final World world) {
+        this.world = world;
+        this.minWorldY = world.getMinHeight();
+        this.maxWorldY = world.getMaxHeight();
+    }
+
+    private static long chunkKey(int chunkX, int chunkZ) {
+        return ((long) chunkX << 32) | ((long) chunkZ & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Capture the snapshot of a loaded chunk, including the height
+     * map and sky light.  Main thread only.
+     *
+     * @return true if the chunk was captured, false if it was already
+     *   captured before or is not loaded.
+     */
+    public boolean capture(int chunkX, int chunkZ) {
+        final long key = chunkKey(chunkX, chunkZ);
+        if (snapshots.containsKey(key)) return false;
+        if (!world.isChunkLoaded(chunkX, chunkZ)) return false;
+        put(chunkX, chunkZ, captureSnapshot(world, chunkX, chunkZ));
+        return true;
+    }
+
+    /**
+     * Capture a snapshot with the height map and sky light, but
+     * without biomes.  The chunk must be loaded.
+     */
+    public static ChunkSnapshot captureSnapshot(World world, int chunkX, int chunkZ) {
+        return world.getChunkAt(chunkX, chunkZ).getChunkSnapshot(true, false, false);
+    }
+
+    /**
+     * Add a snapshot which was captured elsewhere.  Snapshots are
+     * immutable and may thus be shared by several sources.
+     */
+    public void put(int chunkX, int chunkZ, ChunkSnapshot snapshot) {
+        snapshots.put(chunkKey(chunkX, chunkZ), new Captured(snapshot, findHighestSectionTop(snapshot)));
+    }
+
+    /**
+     * Skip empty sections from the top.  Section indexes of the
+     * snapshot start at 0 for the lowest section of the world.
+     */
+    private int findHighestSectionTop(ChunkSnapshot snapshot) {
+        final int minSection = minWorldY >> 4;
+        final int maxSection = (maxWorldY - 1) >> 4;
+        for (int section = maxSection; section >= minSection; section -= 1) {
+            if (!snapshot.isSectionEmpty(section - minSection)) {
+                return (section << 4) + 15;
+            }
+        }
+        return minWorldY - 1;
+    }
+
+    public boolean isCaptured(int chunkX, int chunkZ) {
+        return snapshots.containsKey(chunkKey(chunkX, chunkZ));
+    }
+
+    @Override
+    public boolean hasChunk(int chunkX, int chunkZ) {
+        return snapshots.containsKey(chunkKey(chunkX, chunkZ));
+    }
+
+    public int size() {
+        return snapshots.size();
+    }
+
+    /**
+     * Snapshots throw on coordinates outside of the world height, so
+     * we catch those here.
+     */
+    private ChunkSnapshot getSnapshot(int x, int y, int z) {
+        if (y < minWorldY || y >= maxWorldY) return null;
+        final Captured captured = snapshots.get(chunkKey(x >> 4, z >> 4));
+        return captured != null
+            ? captured.snapshot
+            : null;
+    }
+
+    @Override
+    public Material getType(int x, int y, int z) {
+        final ChunkSnapshot snapshot = getSnapshot(x, y, z);
+        if (snapshot == null) return Material.AIR;
+        return snapshot.getBlockType(x & 0xF, y, z & 0xF);
+    }
+
+    @Override
+    public boolean isWaterlogged(int x, int y, int z) {
+        final ChunkSnapshot snapshot = getSnapshot(x, y, z);
+        if (snapshot == null) return false;
+        return snapshot.getBlockData(x & 0xF, y, z & 0xF) instanceof Waterlogged w && w.isWaterlogged();
+    }
+
+    @Override
+    public int getLightFromSky(int x, int y, int z) {
+        final ChunkSnapshot snapshot = getSnapshot(x, y, z);
+        if (snapshot == null) return 15;
+        return snapshot.getBlockSkyLight(x & 0xF, y, z & 0xF);
+    }
+
+    /**
+     * Snapshots only carry the MOTION_BLOCKING height map, which
+     * misses plants and other blocks the map shows.  Empty sections
+     * are exact, so we start at the top of the highest non-empty one.
+     */
+    @Override
+    public int getHighestBlockY(int x, int z) {
+        final Captured captured = snapshots.get(chunkKey(x >> 4, z >> 4));
+        return captured != null
+            ? captured.highestBlockY
+            : minWorldY - 1;
+    }
+}
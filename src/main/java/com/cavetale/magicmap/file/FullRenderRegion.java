@@ -0,0 +1,26 @@
+package com.cavetale.magicmap.file;
+
+import com.cavetale.core.struct.Vec2i;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import lombok.Data;
+
+/**
+ * One region of a full render which is currently in flight.  The
+ * region and its chunks are saved with the FullRenderTag, so the
+ * render may resume after a restart.  Everything else is rebuilt.
+ */
+@Data
+public final class FullRenderRegion implements Serializable {
+    private Vec2i region;
+    // All chunks in the region, plus one row of padding
+    private final List<Vec2i> chunks = new ArrayList<>();
+    private transient boolean chunksHeld;
+    private transient boolean chunksLoaded;
+    private transient List<MapImageRenderer> renderers;
+    private transient ChunkSnapshotBlockSource snapshots;
+    // Regions the renderers write into, pinned until they finish
+    private transient List<RegionFileCache> pinnedRegions;
+    private transient String status;
+}
@@ -10,15 +10,19 @@ import lombok.Data;
 public final class FullRenderTag implements Serializable {
     private String status;
     private long startTime = System.currentTimeMillis();
-    private long timeout = 0L;
-    private long maxMillisPerTick = 50L;
+    // The last time slice granted by the RenderScheduler
+    private long maxMillisPerTick;
     private WorldBorderCache worldBorder;
-    // Region - We load all chunks in a region with a ticket, then
-    // render them all at once.
+    // Regions - We load all chunks in a region with a ticket, then
+    // render them all at once.  Several regions may be in flight.
+    private final List<FullRenderRegion> activeRegions = new ArrayList<>();
+    // Prefetch - The chunks of the next region in the queue are held
+    // while the regions in flight render.
+    private transient Vec2i prefetchRegion;
+    private transient List<Vec2i> prefetchChunks;
+    // Legacy - Tags saved before regions were rendered in parallel
+    // have at most one current region, which goes back to the queue.
     private Vec2i currentRegion;
-    private transient boolean chunksHeld;
-    private final List<Vec2i> currentChunks = new ArrayList<>();
-    private transient List<MapImageRenderer> renderers;
     // Queue - One ring around the center is queued.  Once done, the
     // currentRing is increased.
     private List<Vec2i> regionQueue = new ArrayList<>();
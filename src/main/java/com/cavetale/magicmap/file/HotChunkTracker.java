@@ -0,0 +1,104 @@
+package com.cavetale.magicmap.file;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import lombok.Getter;
+import static com.cavetale.magicmap.MagicMapPlugin.plugin;
+
+/**
+ * Count how often each chunk gets queued for a rerender.  A chunk
+ * queued more than HotChunks.Threshold times within one window is
+ * hot until a full window passes without it crossing the threshold
+ * again.  WorldFileCache holds back the changes of hot chunks and
+ * releases them on a slower cadence, coalescing everything which
+ * happened in between into one rerender.
+ */
+@Getter
+public final class HotChunkTracker {
+    private final Map<Long, Stat> stats = new HashMap<>();
+    private long lastCleanUp = System.currentTimeMillis();
+    // Metrics
+    private long deferredChanges;
+    private long chunksTurnedHot;
+
+    private static final class Stat {
+        private long windowStart;
+        private int count;
+        private long hotUntil;
+    }
+
+    private static long chunkKey(int chunkX, int chunkZ) {
+        return ((long) chunkX << 32) | ((long) chunkZ & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Record that a chunk was queued.
+     *
+     * @return true if the chunk is hot and the change should be held
+     *   back, false otherwise.
+     */
+    public boolean onQueued(int chunkX, int chunkZ) {
+        return onQueued(chunkX, chunkZ, System.currentTimeMillis(),
+                        plugin().getHotChunkWindowMillis(), plugin().getHotChunkThreshold());
+    }
+
+    boolean onQueued(int chunkX, int chunkZ, long now, long windowMillis, int threshold) {
+        if (windowMillis <= 0L) return false;
+        final Stat stat = stats.computeIfAbsent(chunkKey(chunkX, chunkZ), k -> new Stat());
+        if (now - stat.windowStart >= windowMillis) {
+            stat.windowStart = now;
+            stat.count = 0;
+        }
+        stat.count += 1;
+        if (stat.count > threshold) {
+            if (stat.hotUntil < now) chunksTurnedHot += 1;
+            stat.hotUntil = now + windowMillis;
+        }
+        return stat.hotUntil >= now;
+    }
+
+    /**
+     * Record that a change to a hot chunk was held back.
+     */
+    public void onDeferred() {
+        deferredChanges += 1;
+    }
+
+    /**
+     * Count the chunks which are hot right now.
+     */
+    public int countHotChunks() {
+        return countHotChunks(System.currentTimeMillis());
+    }
+
+    int countHotChunks(long now) {
+        int result = 0;
+        for (Stat stat : stats.values()) {
+            if (stat.hotUntil >= now) result += 1;
+        }
+        return result;
+    }
+
+    /**
+     * Forget chunks which have been quiet for a full window.
+     */
+    public void cleanUp() {
+        cleanUp(System.currentTimeMillis(), plugin().getHotChunkWindowMillis());
+    }
+
+    void cleanUp(long now, long windowMillis) {
+        if (now - lastCleanUp < windowMillis) return;
+        lastCleanUp = now;
+        for (Iterator<Stat> iter = stats.values().iterator(); iter.hasNext();) {
+            final Stat stat = iter.next();
+            if (now - stat.windowStart >= windowMillis && stat.hotUntil < now) {
+                iter.remove();
+            }
+        }
+    }
+
+    public void clear() {
+        stats.clear();
+    }
+}
@@ -0,0 +1,109 @@
+package com.cavetale.magicmap.file;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import lombok.Getter;
+
+/**
+ * Direct access to the pixel array behind a TYPE_INT_ARGB
+ * BufferedImage.  Writes skip the color model conversion and bounds
+ * checks of BufferedImage#setRGB, and rectangles are filled and
+ * copied row by row.
+ *
+ * The plain set and get methods do not check bounds beyond those of
+ * the array itself.  Callers are expected to stay within the image.
+ */
+@Getter
+public final class IntImage {
+    private final BufferedImage image;
+    private final int[] pixels;
+    private final int width;
+    private final int height;
+
+    private IntImage(final BufferedImage image) {
+        this.image = image;
+        this.pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        this.width = image.getWidth();
+        this.height = image.getHeight();
+    }
+
+    /**
+     * Wrap an image which must be of TYPE_INT_ARGB.
+     */
+    public static IntImage of(BufferedImage image) {
+        if (image.getType() != BufferedImage.TYPE_INT_ARGB) {
+            throw new IllegalArgumentException("Image type not TYPE_INT_ARGB: " + image.getType());
+        }
+        return new IntImage(image);
+    }
+
+    public static IntImage create(int width, int height) {
+        return new IntImage(new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB));
+    }
+
+    /**
+     * Make sure an image is of TYPE_INT_ARGB, converting it if
+     * necessary.  ImageIO usually reads PNG files into a different
+     * type.
+     */
+    public static BufferedImage toIntArgb(BufferedImage image) {
+        if (image.getType() == BufferedImage.TYPE_INT_ARGB) return image;
+        final BufferedImage result = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        final Graphics2D gfx = result.createGraphics();
+        gfx.setComposite(AlphaComposite.Src);
+        gfx.drawImage(image, 0, 0, null);
+        gfx.dispose();
+        return result;
+    }
+
+    public int get(int x, int y) {
+        return pixels[y * width + x];
+    }
+
+    public void set(int x, int y, int argb) {
+        pixels[y * width + x] = argb;
+    }
+
+    /**
+     * Set a pixel unless it is out of bounds.
+     */
+    public void setClipped(int x, int y, int argb) {
+        if (x < 0 || y < 0 || x >= width || y >= height) return;
+        pixels[y * width + x] = argb;
+    }
+
+    /**
+     * Fill a rectangle, clipped to the image bounds.
+     */
+    public void fillRect(int x, int y, int w, int h, int argb) {
+        final int ax = Math.max(0, x);
+        final int ay = Math.max(0, y);
+        final int bx = Math.min(width, x + w);
+        final int by = Math.min(height, y + h);
+        if (ax >= bx) return;
+        for (int row = ay; row < by; row += 1) {
+            final int offset = row * width;
+            Arrays.fill(pixels, offset + ax, offset + bx, argb);
+        }
+    }
+
+    /**
+     * Copy a rectangle from another image, replacing the pixels in
+     * this one.  Callers make sure the rectangle fits both images.
+     */
+    public void copyFrom(IntImage source, int srcX, int srcY, int dstX, int dstY, int w, int h) {
+        if (w <= 0) return;
+        for (int row = 0; row < h; row += 1) {
+            System.arraycopy(source.pixels, (srcY + row) * source.width + srcX,
+                             pixels, (dstY + row) * width + dstX,
+                             w);
+        }
+    }
+
+    public void copyFrom(IntImage source, int dstX, int dstY) {
+        copyFrom(source, 0, 0, dstX, dstY, source.width, source.height);
+    }
+}
@@ -0,0 +1,34 @@
+package com.cavetale.magicmap.file;
+
+import org.bukkit.Material;
+
+/**
+ * Provide the block information which the MapImageRenderer needs.
+ * Implementations either read straight from the live world, which
+ * confines them to the main thread, or from previously captured
+ * chunk snapshots, which may be read from any thread.
+ */
+public interface MapBlockSource {
+    /**
+     * Check if a chunk is available.  Columns in missing chunks are
+     * rendered empty and no blocks are read from them, which must
+     * never cause a chunk to be loaded or generated.
+     */
+    boolean hasChunk(int chunkX, int chunkZ);
+
+    Material getType(int x, int y, int z);
+
+    boolean isWaterlogged(int x, int y, int z);
+
+    int getLightFromSky(int x, int y, int z);
+
+    /**
+     * Get the Y coordinate from which to scan a column downwards.
+     * This is never below the highest non-air block of the column.
+     * Sources with an exact height map return the highest block
+     * itself, others may return a higher value, such as the top of
+     * the highest non-empty chunk section.  A value below the world
+     * minimum means that the column is empty.
+     */
+    int getHighestBlockY(int x, int z);
+}
@@ -2,20 +2,26 @@ package com.cavetale.magicmap.file;
 
 import com.cavetale.magicmap.ColorIndex;
 import com.cavetale.magicmap.RenderType;
-import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import lombok.AccessLevel;
 import lombok.Getter;
-import lombok.RequiredArgsConstructor;
-import org.bukkit.Material;
 import org.bukkit.World;
-import org.bukkit.block.Block;
-import org.bukkit.block.data.Waterlogged;
 
+/**
+ * Render a rectangular part of the world into one PaletteImage per
+ * RenderType.  All block information comes from the MapBlockSource.
+ * A renderer reading from the live world must be run in the main
+ * thread, one reading from chunk snapshots may be run in any thread.
+ *
+ * All RenderTypes are rendered in the same pass over the columns.
+ * Each block of a column is read from the source at most once per
+ * pixel, no matter how many RenderTypes look at it.
+ */
 @Getter
-@RequiredArgsConstructor
 public final class MapImageRenderer {
-    private final World world;
-    private final BufferedImage image;
-    private final RenderType renderType;
+    private final MapBlockSource source;
     private final int minWorldX;
     private final int minWorldZ;
     private final int sizeX;
@@ -23,26 +29,180 @@ public final class MapImageRenderer {
     private final WorldBorderCache worldBorder;
     private final int minWorldY;
     private final int maxWorldY;
+    private final List<Target> targets = new ArrayList<>();
     private int canvasX = -1;
     private int canvasY = 0;
-    private boolean finished;
+    private volatile boolean finished;
+    private static final int UNKNOWN_HEIGHT = Integer.MIN_VALUE;
+    // Optional mask with one bit per pixel, row by row.  Pixels not
+    // in the mask are skipped and left untouched.
+    @Getter(AccessLevel.NONE) private long[] pixelMask;
+    // The column of the current pixel and the one below it, which
+    // the current pixel needs for shading.
+    @Getter(AccessLevel.NONE) private final Column here;
+    @Getter(AccessLevel.NONE) private final Column below;
+    // Measured cost of one step, smoothed, for runUntil
+    private double nanosPerStep = 1000.0;
+    private static final long MAX_BATCH = 4096L;
 
-    public MapImageRenderer(final World world,
-                            final BufferedImage image,
-                            final RenderType renderType,
+    /**
+     * The output of one RenderType.
+     */
+    @Getter
+    public static final class Target {
+        private final RenderType renderType;
+        private final PaletteImage image;
+        @Getter(AccessLevel.NONE) private final byte[] pixels;
+        @Getter(AccessLevel.NONE) private final int stride;
+        // Where the rendered area starts within the image
+        private final int originX;
+        private final int originY;
+        // Optional output of the lowest Y whose change may alter a
+        // pixel, per cell of the rendered area.  See
+        // RegionFileCache#floors.
+        private final short[] floors;
+        // Column heights of the current row and the one below, which
+        // the current row needs for shading.  Each column is scanned
+        // once.
+        @Getter(AccessLevel.NONE) private int[] currentRowHeights;
+        @Getter(AccessLevel.NONE) private int[] nextRowHeights;
+
+        private Target(final RenderType renderType, final PaletteImage image, final int originX, final int originY,
+                       final short[] floors, final int sizeX) {
+            this.renderType = renderType;
+            this.image = image;
+            this.pixels = image.getPixels();
+            this.stride = image.getWidth();
+            this.originX = originX;
+            this.originY = originY;
+            this.floors = floors;
+            this.currentRowHeights = new int[sizeX];
+            this.nextRowHeights = new int[sizeX];
+            Arrays.fill(currentRowHeights, UNKNOWN_HEIGHT);
+            Arrays.fill(nextRowHeights, UNKNOWN_HEIGHT);
+        }
+
+        private void swapRows() {
+            final int[] swap = currentRowHeights;
+            currentRowHeights = nextRowHeights;
+            nextRowHeights = swap;
+            Arrays.fill(nextRowHeights, UNKNOWN_HEIGHT);
+        }
+    }
+
+    /**
+     * Block reads of one column, remembered until the column changes.
+     * A generation counter invalidates them without clearing the
+     * arrays.
+     */
+    private final class Column {
+        private int x;
+        private int z;
+        private boolean valid;
+        private int generation;
+        private final int[] generations = new int[maxWorldY - minWorldY];
+        private final int[] infos = new int[maxWorldY - minWorldY];
+        private int highestBlockY;
+
+        private void reset(int newX, int newZ) {
+            x = newX;
+            z = newZ;
+            valid = true;
+            highestBlockY = UNKNOWN_HEIGHT;
+            generation += 1;
+            if (generation == 0) {
+                Arrays.fill(generations, 0);
+                generation = 1;
+            }
+        }
+
+        private int info(int y) {
+            final int index = y - minWorldY;
+            if (index < 0 || index >= infos.length) {
+                return ColorIndex.materialInfo(source.getType(x, y, z));
+            }
+            if (generations[index] != generation) {
+                infos[index] = ColorIndex.materialInfo(source.getType(x, y, z));
+                generations[index] = generation;
+            }
+            return infos[index];
+        }
+
+        private boolean isAir(int y) {
+            return (info(y) & ColorIndex.FLAG_AIR) != 0;
+        }
+
+        private int highestBlockY() {
+            if (highestBlockY == UNKNOWN_HEIGHT) {
+                highestBlockY = Math.min(maxWorldY - 1, source.getHighestBlockY(x, z));
+            }
+            return highestBlockY;
+        }
+    }
+
+    /**
+     * Create a renderer without targets.  Add one per RenderType
+     * before running.
+     */
+    public MapImageRenderer(final MapBlockSource source,
+                            final int minWorldY, final int maxWorldY,
                             final int minWorldX, final int minWorldZ,
                             final int sizeX, final int sizeZ,
                             final WorldBorderCache worldBorder) {
-        this.world = world;
-        this.image = image;
-        this.renderType = renderType;
+        this.source = source;
         this.minWorldX = minWorldX;
         this.minWorldZ = minWorldZ;
         this.sizeX = sizeX;
         this.sizeZ = sizeZ;
         this.worldBorder = worldBorder;
-        this.minWorldY = world.getMinHeight();
-        this.maxWorldY = world.getMaxHeight();
+        this.minWorldY = minWorldY;
+        this.maxWorldY = maxWorldY;
+        this.here = new Column();
+        this.below = new Column();
+    }
+
+    public MapImageRenderer(final World world,
+                            final int minWorldX, final int minWorldZ,
+                            final int sizeX, final int sizeZ,
+                            final WorldBorderCache worldBorder) {
+        this(new WorldBlockSource(world), world.getMinHeight(), world.getMaxHeight(),
+             minWorldX, minWorldZ, sizeX, sizeZ, worldBorder);
+    }
+
+    /**
+     * Render one more RenderType into the given image.  Call before
+     * running.
+     *
+     * @param floors the array to record the lowest floor of each
+     *   cell of the rendered area in, see
+     *   RegionFileCache#createRenderFloors, or null
+     */
+    public MapImageRenderer addTarget(RenderType renderType, PaletteImage image, short[] floors) {
+        return addTarget(renderType, image, 0, 0, floors);
+    }
+
+    /**
+     * Render one more RenderType into part of a larger image, such as
+     * a region image, starting at the given origin.  Nothing else
+     * gets allocated or copied.
+     *
+     * Render threads may write into an image which the main thread
+     * owns.  Single pixel writes are atomic, and the main thread sees
+     * all of them once isFinished returns true.  Readers in between
+     * may see a partial render, which the owner must accept.
+     */
+    public MapImageRenderer addTarget(RenderType renderType, PaletteImage image, int originX, int originY, short[] floors) {
+        targets.add(new Target(renderType, image, originX, originY, floors, sizeX));
+        return this;
+    }
+
+    /**
+     * Only render the pixels whose bit is set, with index
+     * y * sizeX + x.  Call before running.
+     */
+    public MapImageRenderer pixelMask(long[] mask) {
+        this.pixelMask = mask;
+        return this;
     }
 
     public void run(int steps) {
@@ -57,6 +217,39 @@ public final class MapImageRenderer {
         }
     }
 
+    /**
+     * Run until finished or until System#nanoTime reaches the
+     * deadline.  Steps run in batches sized by the measured cost per
+     * step.  Each batch aims at half the remaining time, so the
+     * deadline is met within about one step without reading the
+     * clock after every pixel.
+     *
+     * @return true if finished, false otherwise
+     */
+    public boolean runUntil(final long deadlineNanos) {
+        long now = System.nanoTime();
+        while (!finished && now < deadlineNanos) {
+            final long batch = Math.max(1L, Math.min(MAX_BATCH, (long) ((deadlineNanos - now) / nanosPerStep / 2.0)));
+            run((int) batch);
+            final long after = System.nanoTime();
+            if (!finished) {
+                final double measured = (double) (after - now) / (double) batch;
+                nanosPerStep = Math.max(1.0, nanosPerStep + (measured - nanosPerStep) * 0.25);
+            }
+            now = after;
+        }
+        return finished;
+    }
+
+    /**
+     * Stop rendering, leaving the image partially rendered.  Render
+     * threads call this once the renderer returns or throws so that
+     * the main thread is not left waiting forever.
+     */
+    public void abort() {
+        finished = true;
+    }
+
     private void step() {
         canvasX += 1;
         if (canvasX >= sizeX) {
@@ -66,164 +259,203 @@ public final class MapImageRenderer {
                 finished = true;
                 return;
             }
+            for (Target target : targets) {
+                target.swapRows();
+            }
+        }
+        if (pixelMask != null) {
+            final int index = canvasY * sizeX + canvasX;
+            if ((pixelMask[index >> 6] & (1L << index)) == 0) return;
         }
         final int worldX = canvasX + minWorldX;
         final int worldZ = canvasY + minWorldZ;
-        if (!worldBorder.containsBlock(worldX, worldZ)) {
-            image.setRGB(canvasX, canvasY, 0);
+        if (!worldBorder.containsBlock(worldX, worldZ) || !source.hasChunk(worldX >> 4, worldZ >> 4)) {
+            for (Target target : targets) {
+                setFloor(target, RegionFileCache.UNKNOWN_FLOOR);
+                setPixel(target, 0);
+            }
             return;
         }
-        final int highest = highest(worldX, worldZ);
+        here.reset(worldX, worldZ);
+        below.valid = false;
+        for (Target target : targets) {
+            stepTarget(target, worldX, worldZ);
+        }
+    }
+
+    private void stepTarget(Target target, int worldX, int worldZ) {
+        final int highest = currentRowHeight(target);
         if (highest < minWorldY) {
-            if (renderType == RenderType.SURFACE) {
-                image.setRGB(canvasX, canvasY, 0);
+            setFloor(target, minWorldY);
+            if (target.renderType == RenderType.SURFACE) {
+                setPixel(target, 0);
             } else {
-                image.setRGB(canvasX, canvasY, ColorIndex.BLACK.darkRgb);
+                setPixel(target, ColorIndex.BLACK.dark);
             }
             return;
         }
-        Block block = world.getBlockAt(worldX, highest, worldZ);
+        final int info = here.info(highest);
         final int color;
-        if (block.getType() == Material.WATER || (block.getBlockData() instanceof Waterlogged w && w.isWaterlogged())) {
+        if (isWater(info, worldX, highest, worldZ)) {
             final ColorIndex colorIndex = ColorIndex.WATER;
-            while (block.getY() > minWorldY && (block.getType() == Material.WATER || (block.getBlockData() instanceof Waterlogged w2 && w2.isWaterlogged()))) {
-                block = block.getRelative(0, -1, 0);
-            }
-            int depth = highest - block.getY();
-            if (depth <= 2) {
-                color = colorIndex.brightRgb;
-            } else if (depth <= 4) {
-                color = (canvasX & 1) == (canvasY & 1) ? colorIndex.brightRgb : colorIndex.lightRgb;
-            } else if (depth <= 6) {
-                color = colorIndex.lightRgb;
-            } else if (depth <= 8) {
-                color = (canvasX & 1) == (canvasY & 1) ? colorIndex.normalRgb : colorIndex.lightRgb;
-            } else if (depth <= 12) {
-                color = colorIndex.normalRgb;
-            } else if (depth <= 16) {
-                color = (canvasX & 1) == (canvasY & 1) ? colorIndex.normalRgb : colorIndex.darkRgb;
-            } else {
-                color = colorIndex.darkRgb;
+            int y = highest;
+            while (y > minWorldY && isWater(here.info(y), worldX, y, worldZ)) {
+                y -= 1;
             }
-            image.setRGB(canvasX, canvasY, color);
-        } else if (block.getType() == Material.LAVA) {
+            setFloor(target, y);
+            setPixel(target, liquidColor(colorIndex, highest - y));
+        } else if ((info & ColorIndex.FLAG_LAVA) != 0) {
             final ColorIndex colorIndex = ColorIndex.LAVA;
-            while (block.getY() > minWorldY && block.getType() == Material.LAVA) {
-                block = block.getRelative(0, -1, 0);
-            }
-            int depth = highest - block.getY();
-            if (depth <= 2) {
-                color = colorIndex.brightRgb;
-            } else if (depth <= 4) {
-                color = (canvasX & 1) == (canvasY & 1) ? colorIndex.brightRgb : colorIndex.lightRgb;
-            } else if (depth <= 6) {
-                color = colorIndex.lightRgb;
-            } else if (depth <= 8) {
-                color = (canvasX & 1) == (canvasY & 1) ? colorIndex.normalRgb : colorIndex.lightRgb;
-            } else if (depth <= 12) {
-                color = colorIndex.normalRgb;
-            } else if (depth <= 16) {
-                color = (canvasX & 1) == (canvasY & 1) ? colorIndex.normalRgb : colorIndex.darkRgb;
-            } else {
-                color = colorIndex.darkRgb;
+            int y = highest;
+            while (y > minWorldY && (here.info(y) & ColorIndex.FLAG_LAVA) != 0) {
+                y -= 1;
             }
-            image.setRGB(canvasX, canvasY, color);
+            setFloor(target, y);
+            setPixel(target, liquidColor(colorIndex, highest - y));
         } else {
-            final ColorIndex colorIndex = ColorIndex.ofMaterial(block.getType(), ColorIndex.BLACK);
+            setFloor(target, highest);
+            final ColorIndex colorIndex = ColorIndex.ofInfo(info);
             // Neighbor block where the sunlight comes from.
-            final int lx = 0;
-            final int ly = 1;
-            final int nx = worldX + lx;
-            final int nz = worldZ + ly;
             // 1 == Bright
             // 2 == Super Bright
             // 3 == Dark
-            int highestN = highest(nx, nz);
+            int highestN = nextRowHeight(target, worldX, worldZ + 1);
             if (highestN >= 0) {
                 if (highest > highestN) {
-                    color = colorIndex.brightRgb;
+                    color = colorIndex.bright;
                 } else if (highest < highestN) {
-                    color = colorIndex.normalRgb;
+                    color = colorIndex.normal;
                 } else {
-                    color = colorIndex.lightRgb;
+                    color = colorIndex.light;
                 }
             } else {
-                color = colorIndex.normalRgb;
-            }
-            try {
-                image.setRGB(canvasX, canvasY, color);
-            } catch (ArrayIndexOutOfBoundsException aioobe) {
-                throw new RuntimeException("coords:" + canvasX + "," + canvasY
-                                           + " size:" + sizeX + "," + sizeZ
-                                           + " image:" + image.getWidth() + "," + image.getHeight(),
-                                           aioobe);
+                color = colorIndex.normal;
             }
+            setPixel(target, color);
         }
     }
 
-    private int highest(int x, int z) {
+    /**
+     * Liquids get lighter the shallower they are, with a checkered
+     * transition between shades.
+     */
+    private int liquidColor(ColorIndex colorIndex, int depth) {
+        if (depth <= 2) {
+            return colorIndex.bright;
+        } else if (depth <= 4) {
+            return (canvasX & 1) == (canvasY & 1) ? colorIndex.bright : colorIndex.light;
+        } else if (depth <= 6) {
+            return colorIndex.light;
+        } else if (depth <= 8) {
+            return (canvasX & 1) == (canvasY & 1) ? colorIndex.normal : colorIndex.light;
+        } else if (depth <= 12) {
+            return colorIndex.normal;
+        } else if (depth <= 16) {
+            return (canvasX & 1) == (canvasY & 1) ? colorIndex.normal : colorIndex.dark;
+        } else {
+            return colorIndex.dark;
+        }
+    }
+
+    private void setPixel(Target target, int color) {
+        try {
+            target.pixels[(target.originY + canvasY) * target.stride + target.originX + canvasX] = (byte) color;
+        } catch (ArrayIndexOutOfBoundsException aioobe) {
+            throw new RuntimeException("coords:" + canvasX + "," + canvasY
+                                       + " size:" + sizeX + "," + sizeZ
+                                       + " image:" + target.image.getWidth() + "," + target.image.getHeight(),
+                                       aioobe);
+        }
+    }
+
+    private void setFloor(Target target, int y) {
+        if (target.floors == null) return;
+        final int index = (canvasY / RegionFileCache.FLOOR_CELL) * (sizeX / RegionFileCache.FLOOR_CELL)
+            + canvasX / RegionFileCache.FLOOR_CELL;
+        if (y < target.floors[index]) target.floors[index] = (short) y;
+    }
+
+    private int currentRowHeight(Target target) {
+        int result = target.currentRowHeights[canvasX];
+        if (result == UNKNOWN_HEIGHT) {
+            result = highest(target.renderType, here);
+            target.currentRowHeights[canvasX] = result;
+        }
+        return result;
+    }
+
+    /**
+     * The next row may be the one right outside of the rendered area,
+     * which we only ever need for shading.
+     */
+    private int nextRowHeight(Target target, int x, int z) {
+        int result = target.nextRowHeights[canvasX];
+        if (result == UNKNOWN_HEIGHT) {
+            if (!below.valid) below.reset(x, z);
+            result = highest(target.renderType, below);
+            target.nextRowHeights[canvasX] = result;
+        }
+        return result;
+    }
+
+    private int highest(RenderType renderType, Column column) {
+        if (!source.hasChunk(column.x >> 4, column.z >> 4)) return minWorldY - 1;
         return switch (renderType) {
-        case NETHER -> highestNether(x, z);
-        case CAVE -> highestCave(x, z);
-        case SURFACE -> highestSurface(x, z);
-        default -> highestSurface(x, z);
+        case NETHER -> highestNether(column);
+        case CAVE -> highestCave(column);
+        case SURFACE -> highestSurface(column);
+        default -> highestSurface(column);
         };
     }
 
-    private int highestNether(int x, int z) {
-        int y = 127;
-        // skip blocks
-        while (y >= minWorldY && !world.getBlockAt(x, y, z).isEmpty()) y -= 1;
-        // skip air
-        while (y >= minWorldY && world.getBlockAt(x, y, z).isEmpty()) y -= 1;
-        // skip transparent, non-lava
+    /**
+     * Only look at the block data if the material can be waterlogged.
+     */
+    private boolean isWater(int info, int x, int y, int z) {
+        if ((info & ColorIndex.FLAG_WATER) != 0) return true;
+        return (info & ColorIndex.FLAG_WATERLOGGABLE) != 0 && source.isWaterlogged(x, y, z);
+    }
+
+    /**
+     * Skip transparent blocks, stopping at liquids or blocks with a
+     * color.
+     */
+    private int skipTransparent(Column column, int y) {
         while (y >= minWorldY) {
-            final Block block = world.getBlockAt(x, y, z);
-            if (block.isLiquid()) break;
-            final ColorIndex colorIndex = ColorIndex.ofMaterial(block.getType());
-            if (colorIndex != null && !colorIndex.isEmpty()) break;
+            final int info = column.info(y);
+            if ((info & ColorIndex.FLAG_LIQUID) != 0 || (info & ColorIndex.FLAG_TRANSPARENT) == 0) break;
             y -= 1;
         }
         return y;
     }
 
-    private int highestCave(int x, int z) {
-        int y = maxWorldY;
+    private int highestNether(Column column) {
+        int y = 127;
+        // skip blocks
+        while (y >= minWorldY && !column.isAir(y)) y -= 1;
         // skip air
-        while (y >= minWorldY && world.getBlockAt(x, y, z).isEmpty()) y -= 1;
-        while (y >= minWorldY) { // skip sunlit blocks
-            Block block = world.getBlockAt(x, y, z);
-            if (block.isLiquid() || !block.isEmpty() || block.getLightFromSky() == 15) {
-                y -= 1;
-            } else {
-                break;
-            }
-        }
+        while (y >= minWorldY && column.isAir(y)) y -= 1;
+        // skip transparent, non-lava
+        return skipTransparent(column, y);
+    }
+
+    private int highestCave(Column column) {
+        int y = column.highestBlockY();
+        // skip air
+        while (y >= minWorldY && column.isAir(y)) y -= 1;
+        // skip sunlit blocks
+        while (y >= minWorldY && (!column.isAir(y) || source.getLightFromSky(column.x, y, column.z) == 15)) y -= 1;
         // skip air
-        while (y >= minWorldY && world.getBlockAt(x, y, z).isEmpty()) y -= 1;
+        while (y >= minWorldY && column.isAir(y)) y -= 1;
         // skip transparent, non-water
-        while (y >= minWorldY) {
-            final Block block = world.getBlockAt(x, y, z);
-            if (block.isLiquid()) break;
-            final ColorIndex colorIndex = ColorIndex.ofMaterial(block.getType());
-            if (colorIndex != null && !colorIndex.isEmpty()) break;
-            y -= 1;
-        }
-        return y;
+        return skipTransparent(column, y);
     }
 
-    private int highestSurface(int x, int z) {
-        int y = maxWorldY;
+    private int highestSurface(Column column) {
+        int y = column.highestBlockY();
         // skip air
-        while (y >= minWorldY && world.getBlockAt(x, y, z).isEmpty()) y -= 1;
+        while (y >= minWorldY && column.isAir(y)) y -= 1;
         // skip transparent
-        while (y >= minWorldY) {
-            final Block block = world.getBlockAt(x, y, z);
-            if (block.isLiquid()) break;
-            final ColorIndex colorIndex = ColorIndex.ofMaterial(block.getType());
-            if (colorIndex != null && !colorIndex.isEmpty()) break;
-            y -= 1;
-        }
-        return y;
+        return skipTransparent(column, y);
     }
 }
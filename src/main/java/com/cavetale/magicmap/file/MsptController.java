@@ -0,0 +1,49 @@
+package com.cavetale.magicmap.file;
+
+import lombok.Getter;
+
+/**
+ * A PI controller which picks the render budget per tick so that the
+ * measured tick time approaches the target.  Headroom below the
+ * target raises the budget, ticks above it lower the budget right
+ * away through the proportional term, and the integral term settles
+ * on the budget the server can sustain.
+ *
+ * The integral is clamped to the budget range, so it does not wind
+ * up while the budget is saturated.
+ */
+public final class MsptController {
+    @Getter private double targetMspt = 30.0;
+    private double proportionalGain = 0.5;
+    private double integralGain = 0.1;
+    private double minMillis = 1.0;
+    private double maxMillis = 25.0;
+    private double integral;
+    @Getter private double budgetMillis;
+    @Getter private double lastMspt;
+
+    public void configure(double newTargetMspt, double newProportionalGain, double newIntegralGain,
+                          double newMinMillis, double newMaxMillis) {
+        this.targetMspt = newTargetMspt;
+        this.proportionalGain = newProportionalGain;
+        this.integralGain = newIntegralGain;
+        this.minMillis = newMinMillis;
+        this.maxMillis = Math.max(newMinMillis, newMaxMillis);
+        this.integral = clamp(integral);
+        this.budgetMillis = clamp(budgetMillis);
+    }
+
+    /**
+     * Feed the duration of the tick which just ended.
+     */
+    public void update(double mspt) {
+        lastMspt = mspt;
+        final double error = targetMspt - mspt;
+        integral = clamp(integral + integralGain * error);
+        budgetMillis = clamp(proportionalGain * error + integral);
+    }
+
+    private double clamp(double value) {
+        return Math.max(minMillis, Math.min(maxMillis, value));
+    }
+}
@@ -0,0 +1,128 @@
+package com.cavetale.magicmap.file;
+
+import com.cavetale.magicmap.ColorIndex;
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.Map;
+import lombok.Getter;
+
+/**
+ * An image of one byte per pixel, holding the ColorIndex color times
+ * four plus the brightness, just like a MapCanvas.  This takes a
+ * quarter of the memory of a TYPE_INT_ARGB image.  Zero is
+ * transparent.
+ *
+ * Pixels are converted to ARGB only where needed: when copying into
+ * a map image, and when reading or writing a PNG file.
+ */
+@Getter
+public final class PaletteImage {
+    private final byte[] pixels;
+    private final int width;
+    private final int height;
+    /** ARGB value of each pixel value, see ColorIndex. */
+    private static final int[] ARGB = new int[256];
+    private static final Map<Integer, Byte> INDEX = new HashMap<>();
+
+    static {
+        for (ColorIndex it : ColorIndex.values()) {
+            ARGB[it.normal] = it.normalRgb;
+            ARGB[it.light] = it.lightRgb;
+            ARGB[it.bright] = it.brightRgb;
+            ARGB[it.dark] = it.darkRgb;
+        }
+        for (int i = 0; i < ARGB.length; i += 1) {
+            if (ARGB[i] == 0) continue;
+            INDEX.putIfAbsent(ARGB[i], (byte) i);
+        }
+    }
+
+    public PaletteImage(final int width, final int height) {
+        this.pixels = new byte[width * height];
+        this.width = width;
+        this.height = height;
+    }
+
+    public static int toArgb(byte pixel) {
+        return ARGB[pixel & 0xFF];
+    }
+
+    /**
+     * Find the pixel value of an ARGB color.  Colors outside of the
+     * palette, such as from PNG files written by other programs, get
+     * the closest palette color.  Anything not fully opaque is
+     * transparent.
+     */
+    public static byte ofArgb(int argb) {
+        if ((argb >>> 24) != 0xFF) return 0;
+        final Byte exact = INDEX.get(argb);
+        if (exact != null) return exact;
+        int best = 0;
+        int bestDistance = Integer.MAX_VALUE;
+        for (int i = 0; i < ARGB.length; i += 1) {
+            if (ARGB[i] == 0) continue;
+            final int dr = ((ARGB[i] >> 16) & 0xFF) - ((argb >> 16) & 0xFF);
+            final int dg = ((ARGB[i] >> 8) & 0xFF) - ((argb >> 8) & 0xFF);
+            final int db = (ARGB[i] & 0xFF) - (argb & 0xFF);
+            final int distance = dr * dr + dg * dg + db * db;
+            if (distance < bestDistance) {
+                best = i;
+                bestDistance = distance;
+            }
+        }
+        return (byte) best;
+    }
+
+    /**
+     * Convert an image as read by ImageIO.
+     */
+    public static PaletteImage of(BufferedImage image) {
+        final IntImage intImage = IntImage.of(IntImage.toIntArgb(image));
+        final PaletteImage result = new PaletteImage(intImage.getWidth(), intImage.getHeight());
+        final int[] argb = intImage.getPixels();
+        // Off-palette colors tend to repeat, so only search each once
+        final Map<Integer, Byte> closest = new HashMap<>();
+        for (int i = 0; i < argb.length; i += 1) {
+            final int color = argb[i];
+            if ((color >>> 24) != 0xFF) continue;
+            final Byte exact = INDEX.get(color);
+            result.pixels[i] = exact != null
+                ? exact
+                : closest.computeIfAbsent(color, PaletteImage::ofArgb);
+        }
+        return result;
+    }
+
+    /**
+     * Convert to a TYPE_INT_ARGB image, for ImageIO.
+     */
+    public BufferedImage toBufferedImage() {
+        final IntImage result = IntImage.create(width, height);
+        copyInto(result, 0, 0, 0, 0, width, height);
+        return result.getImage();
+    }
+
+    public byte get(int x, int y) {
+        return pixels[y * width + x];
+    }
+
+    public void set(int x, int y, byte pixel) {
+        pixels[y * width + x] = pixel;
+    }
+
+    /**
+     * Copy a rectangle into an ARGB image, replacing its pixels.
+     * Callers make sure the rectangle fits both images.
+     */
+    public void copyInto(IntImage dst, int srcX, int srcY, int dstX, int dstY, int w, int h) {
+        final int[] dstPixels = dst.getPixels();
+        final int dstWidth = dst.getWidth();
+        for (int row = 0; row < h; row += 1) {
+            int src = (srcY + row) * width + srcX;
+            int index = (dstY + row) * dstWidth + dstX;
+            for (int col = 0; col < w; col += 1) {
+                dstPixels[index++] = ARGB[pixels[src++] & 0xFF];
+            }
+        }
+    }
+}
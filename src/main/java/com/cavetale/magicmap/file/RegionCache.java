@@ -0,0 +1,99 @@
+package com.cavetale.magicmap.file;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import lombok.Getter;
+import static com.cavetale.magicmap.MagicMapPlugin.plugin;
+
+/**
+ * Keep the loaded regions of all worlds within one memory budget.
+ * Each WorldRenderCache still unloads regions which have been unused
+ * for NO_TICK_THRESHOLD ticks.  On top of that, once all loaded
+ * regions take more than the budget, the least recently used ones
+ * are unloaded first, across all worlds.
+ *
+ * Recency is the number of ticks since a region was last used, see
+ * RegionFileCache#noTicks.  Regions used within MIN_IDLE_TICKS, and
+ * regions pinned by a renderer writing into them, are never
+ * unloaded.  Dirty regions are saved first, and journals compacted,
+ * and unloaded once clean.
+ */
+public final class RegionCache {
+    private static final int MIN_IDLE_TICKS = 20 * 10;
+    @Getter private long usedBytes;
+    @Getter private int regionCount;
+    // Counters
+    /** Lookups of a region which was loaded already, see WorldRenderCache#loadRegion. */
+    @Getter private long hits;
+    /** Regions which had to be created and loaded. */
+    @Getter private long misses;
+    @Getter private long evictions;
+    /** Saves of dirty or journaled regions in order to unload them. */
+    @Getter private long evictionSaves;
+
+    protected void onHit() {
+        hits += 1;
+    }
+
+    protected void onMiss() {
+        misses += 1;
+    }
+
+    public long getMaxBytes() {
+        return plugin().getRegionCacheMaxBytes();
+    }
+
+    /**
+     * Measure all loaded regions and unload the least recently used
+     * ones until they fit in the budget.  Called once per tick.
+     */
+    public void tick(Collection<WorldFileCache> worlds) {
+        long bytes = 0L;
+        int count = 0;
+        for (WorldFileCache world : worlds) {
+            for (WorldRenderCache render : world.getRenderTypeMap().values()) {
+                for (RegionFileCache region : render.getRegionMap().values()) {
+                    bytes += region.getMemoryBytes();
+                    count += 1;
+                }
+            }
+        }
+        usedBytes = bytes;
+        regionCount = count;
+        final long maxBytes = getMaxBytes();
+        if (maxBytes <= 0L || usedBytes <= maxBytes) return;
+        final List<RegionFileCache> candidates = new ArrayList<>();
+        for (WorldFileCache world : worlds) {
+            for (WorldRenderCache render : world.getRenderTypeMap().values()) {
+                for (RegionFileCache region : render.getRegionMap().values()) {
+                    if (region.isBusy() || region.isPinned() || region.getNoTicks() < MIN_IDLE_TICKS) continue;
+                    switch (region.getState()) {
+                    case LOADED:
+                    case OUT_OF_BOUNDS:
+                        candidates.add(region);
+                        break;
+                    default: break;
+                    }
+                }
+            }
+        }
+        candidates.sort(Comparator.comparingInt(RegionFileCache::getNoTicks).reversed());
+        for (RegionFileCache region : candidates) {
+            if (usedBytes <= maxBytes) break;
+            final WorldRenderCache render = region.getWorldRenderCache();
+            if (region.isDirty() || region.getJournalRecords() > 0) {
+                // Cannot be unloaded before a save succeeds
+                if (region.isSaveBackingOff()) continue;
+                render.scheduleSave(region, true);
+                evictionSaves += 1;
+                continue;
+            }
+            usedBytes -= region.getMemoryBytes();
+            regionCount -= 1;
+            render.unloadRegion(region);
+            evictions += 1;
+        }
+    }
+}
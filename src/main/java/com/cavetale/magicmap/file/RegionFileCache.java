@@ -1,9 +1,16 @@
 package com.cavetale.magicmap.file;
 
 import com.cavetale.core.struct.Vec2i;
-import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.BitSet;
 import java.util.logging.Level;
 import javax.imageio.ImageIO;
@@ -13,19 +20,69 @@ import static com.cavetale.magicmap.MagicMapPlugin.plugin;
 /**
  * Represent one region image file.  This class is mostly dumb and
  * managed by WorldRenderCache.
+ *
+ * The image is kept as a PaletteImage in memory and only converted
+ * to ARGB for the PNG file.
+ *
+ * Saves which only changed a few chunks append those chunks to the
+ * journal file instead of writing the whole image, see appendJournal.
+ * Loading applies the journal on top of the image, and so does the
+ * web server, see readImageWithJournal.  A full save compacts the
+ * journal into the image and deletes it.
  */
 @Data
 public final class RegionFileCache {
     private final WorldRenderCache worldRenderCache; // parent
     private final Vec2i region;
     private File imageFile;
-    private BufferedImage image;
+    private File journalFile;
+    private PaletteImage image;
     private State state = State.INIT;
     private int noTicks = 0;
     private BitSet renderedChunks = new BitSet(1024);
-    /** This is a gate for async load and save operations so they are
-        only scheduled once. */
+    /** Set while a RegionIoPool job owns this region, so it is only
+        loaded or saved by one thread at a time. */
     private boolean busy = false;
+    /** Renders writing into the image, see pin. */
+    private int pins = 0;
+    /** Changed since the last save, see WorldRenderCache#markDirty. */
+    private boolean dirty = false;
+    private long dirtySince;
+    /** Bytes written by the last save, for the write budget. */
+    private long savedBytes;
+    /** Chunks changed since the last save, see chunkIndex. */
+    private BitSet dirtyChunks = new BitSet(1024);
+    /** The dirty chunks the running save writes. */
+    private BitSet savingChunks = new BitSet(1024);
+    /** Set if the running save writes the whole image. */
+    private boolean savingAll;
+    /** The dirty state before the running save, to restore it if
+        the save fails. */
+    private boolean savingDirty;
+    private long savingDirtySince;
+    /** Set by the I/O thread once the running save succeeded. */
+    private boolean saved;
+    /** Failed saves in a row, and when the next may be tried. */
+    private int saveFailures;
+    private long saveRetryTime;
+    private static final long SAVE_RETRY_MILLIS = 5_000L;
+    private static final long MAX_SAVE_RETRY_MILLIS = 300_000L;
+    /** Chunk tiles in the journal file. */
+    private int journalRecords;
+    // One record: the chunk index as a short, then its pixels
+    private static final int JOURNAL_RECORD_SIZE = 2 + 16 * 16;
+    /**
+     * The lowest Y whose change may alter a rendered pixel, per cell
+     * of FLOOR_CELL by FLOOR_CELL columns, indexed
+     * cellZ * FLOOR_CELLS + cellX.  Anything below is hidden by the
+     * blocks above.  Every render records them, see mergeFloors.
+     * They are not saved, so they are null until the first render
+     * after loading, and cells not rendered since are UNKNOWN_FLOOR.
+     */
+    private short[] floors;
+    public static final short UNKNOWN_FLOOR = Short.MIN_VALUE;
+    public static final int FLOOR_CELL = 4;
+    private static final int FLOOR_CELLS = 512 / FLOOR_CELL;
 
     public enum State {
         INIT,
@@ -44,6 +101,7 @@ public final class RegionFileCache {
     protected RegionFileCache enable() {
         if (worldRenderCache.isPersistent()) {
             imageFile = new File(worldRenderCache.getMapFolder(), "r." + region.x + "." + region.z + ".png");
+            journalFile = new File(worldRenderCache.getMapFolder(), "r." + region.x + "." + region.z + ".journal");
             renderedChunks.set(0, renderedChunks.length(), true);
         } else {
             // Non persistent maps go straight to loaded or out of
@@ -62,14 +120,36 @@ public final class RegionFileCache {
     }
 
     /**
-     * Load or create the image file.
-     * This should be called in an async thread by
-     * WorldRenderCache.loadingQueue().
+     * Load or create the image, then apply the journal.
+     * This should be called in an I/O thread of the RegionIoPool.
      */
     protected void load() {
+        loadBase();
+        readJournal();
+    }
+
+    /**
+     * With a TileStore, the PNG file is only read if the store does
+     * not have this region yet.
+     */
+    private void loadBase() {
+        final TileStore tileStore = worldRenderCache.getTileStore();
+        if (tileStore != null) {
+            final PaletteImage stored = new PaletteImage(512, 512);
+            try {
+                if (tileStore.read(region, stored)) {
+                    image = stored;
+                    return;
+                }
+            } catch (IOException ioe) {
+                plugin().getLogger().log(Level.SEVERE,
+                                         "Read tile " + worldRenderCache.getWorldFileCache().getName() + "/" + worldRenderCache.getRenderType() + "/" + region,
+                                         ioe);
+            }
+        }
         if (imageFile.exists()) {
             try {
-                image = ImageIO.read(imageFile);
+                image = PaletteImage.of(ImageIO.read(imageFile));
             } catch (IOException ioe) {
                 plugin().getLogger().log(Level.SEVERE,
                                          "Read " + worldRenderCache.getWorldFileCache().getName() + "/" + worldRenderCache.getRenderType() + "/" + region,
@@ -82,20 +162,287 @@ public final class RegionFileCache {
     }
 
     public void makeEmptyImage() {
-        image = new BufferedImage(512, 512, BufferedImage.TYPE_INT_ARGB);
+        image = new PaletteImage(512, 512);
+    }
+
+    /**
+     * Choose what the next save writes, mark this region clean, and
+     * start collecting dirty chunks anew.  Called in the main thread.
+     *
+     * @param compact true to write the whole image and compact the
+     *   journal, false to let save decide
+     */
+    protected void prepareSave(boolean compact) {
+        savingChunks = (BitSet) dirtyChunks.clone();
+        savingAll = compact;
+        savingDirty = dirty;
+        savingDirtySince = dirtySince;
+        saved = false;
+        dirty = false;
+        dirtyChunks.clear();
     }
 
-    protected void save() {
-        if (image == null) return;
+    /**
+     * Make the changes of a failed save dirty again, so they are
+     * saved later instead of lost, and wait before the next try.
+     * Each failure in a row doubles the wait.  Called in the main
+     * thread.
+     */
+    protected void restoreFailedSave() {
+        if (savingDirty) {
+            dirtyChunks.or(savingChunks);
+            dirtySince = dirty ? Math.min(dirtySince, savingDirtySince) : savingDirtySince;
+            dirty = true;
+        }
+        saveFailures += 1;
+        final long wait = Math.min(MAX_SAVE_RETRY_MILLIS, SAVE_RETRY_MILLIS << Math.min(saveFailures - 1, 16));
+        saveRetryTime = System.currentTimeMillis() + wait;
+    }
+
+    protected void resetSaveFailures() {
+        saveFailures = 0;
+        saveRetryTime = 0L;
+    }
+
+    /**
+     * Check if a save failed recently, so no save should be
+     * scheduled yet.
+     */
+    public boolean isSaveBackingOff() {
+        return saveRetryTime > System.currentTimeMillis();
+    }
+
+    /**
+     * Guess how many bytes the prepared save will write.
+     */
+    protected long estimateSaveBytes() {
+        if (willAppendJournal()) {
+            return (long) savingChunks.cardinality() * JOURNAL_RECORD_SIZE;
+        }
+        return Math.max(TileStore.TILE_SIZE, savedBytes);
+    }
+
+    private boolean willAppendJournal() {
+        final int maxRecords = plugin().getJournalMaxRecords();
+        return !savingAll && maxRecords > 0 && journalRecords + savingChunks.cardinality() <= maxRecords;
+    }
+
+    /**
+     * Append the chunks of prepareSave to the journal if there are
+     * few enough of them, otherwise write the whole image.
+     * This should be called in an I/O thread of the RegionIoPool.
+     *
+     * @return true if everything was written, false otherwise
+     */
+    protected boolean save() {
+        savedBytes = 0L;
+        if (image == null) return true;
+        if (willAppendJournal() && hasBase() && appendJournal(savingChunks)) return true;
+        return saveBase() && deleteJournal();
+    }
+
+    private boolean hasBase() {
+        final TileStore tileStore = worldRenderCache.getTileStore();
+        return imageFile.exists() || (tileStore != null && tileStore.contains(region));
+    }
+
+    /**
+     * Save into the TileStore if there is one, and into the PNG file
+     * unless the store makes it unnecessary or fails.  The web server
+     * only reads PNG files.
+     *
+     * @return true if the image was written, false otherwise
+     */
+    private boolean saveBase() {
+        final TileStore tileStore = worldRenderCache.getTileStore();
+        boolean tileWritten = false;
+        if (tileStore != null) {
+            try {
+                tileStore.write(region, image);
+                savedBytes = TileStore.TILE_SIZE;
+                tileWritten = true;
+                if (!plugin().isTileStoreExportPng()) return true;
+            } catch (IOException ioe) {
+                // Fall back to the PNG file
+                plugin().getLogger().log(Level.SEVERE,
+                                         "Write tile " + worldRenderCache.getWorldFileCache().getName() + "/" + worldRenderCache.getRenderType() + "/" + region,
+                                         ioe);
+            }
+        }
         try {
-            ImageIO.write(image, "png", imageFile);
+            ImageIO.write(image.toBufferedImage(), "png", imageFile);
+            savedBytes += imageFile.length();
+            if (tileStore != null && !tileWritten) {
+                // The old tile would win over the new PNG in loadBase
+                try {
+                    tileStore.drop(region);
+                } catch (IOException ioe) {
+                    plugin().getLogger().log(Level.SEVERE,
+                                             "Drop tile " + worldRenderCache.getWorldFileCache().getName() + "/" + worldRenderCache.getRenderType() + "/" + region,
+                                             ioe);
+                }
+            }
+            return true;
         } catch (IOException ioe) {
             plugin().getLogger().log(Level.SEVERE,
                                      "Write " + worldRenderCache.getWorldFileCache().getName() + "/" + worldRenderCache.getRenderType() + "/" + region,
                                      ioe);
+            return savedBytes > 0L;
+        }
+    }
+
+    /**
+     * Append the pixels of the given chunks to the journal.
+     *
+     * @return true if successful, false otherwise
+     */
+    private boolean appendJournal(BitSet chunks) {
+        try {
+            writeJournal(journalFile, journalRecords, image.getPixels(), chunks);
+        } catch (IOException ioe) {
+            plugin().getLogger().log(Level.SEVERE,
+                                     "Append journal " + worldRenderCache.getWorldFileCache().getName() + "/" + worldRenderCache.getRenderType() + "/" + region,
+                                     ioe);
+            return false;
+        }
+        journalRecords += chunks.cardinality();
+        savedBytes = (long) chunks.cardinality() * JOURNAL_RECORD_SIZE;
+        return true;
+    }
+
+    private void readJournal() {
+        journalRecords = 0;
+        if (!journalFile.exists()) return;
+        try {
+            journalRecords = applyJournal(journalFile, image.getPixels());
+        } catch (IOException ioe) {
+            plugin().getLogger().log(Level.SEVERE,
+                                     "Read journal " + worldRenderCache.getWorldFileCache().getName() + "/" + worldRenderCache.getRenderType() + "/" + region,
+                                     ioe);
+        }
+    }
+
+    /**
+     * Append one record per chunk to a journal file which holds the
+     * given number of records.  Anything after those, such as a
+     * partial record left by an interrupted write, is cut off first.
+     * If the write fails, the file is cut back to those records, so a
+     * partial record never ends up in the middle.
+     *
+     * @param pixels the pixels of a 512 by 512 image
+     */
+    static void writeJournal(File file, int records, byte[] pixels, BitSet chunks) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(chunks.cardinality() * JOURNAL_RECORD_SIZE);
+        for (int index = chunks.nextSetBit(0); index >= 0; index = chunks.nextSetBit(index + 1)) {
+            buffer.putShort((short) index);
+            final int offset = ((index >> 5) << 13) | ((index & 31) << 4);
+            for (int row = 0; row < 16; row += 1) {
+                buffer.put(pixels, offset + (row << 9), 16);
+            }
+        }
+        buffer.flip();
+        final long validSize = (long) records * JOURNAL_RECORD_SIZE;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            channel.truncate(validSize);
+            try {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer, validSize + buffer.position());
+                }
+            } catch (IOException ioe) {
+                channel.truncate(validSize);
+                throw ioe;
+            }
         }
     }
 
+    /**
+     * Apply a journal file to the pixels of an image, in the order it
+     * was written.  A partial record at the end, left by an
+     * interrupted write, is ignored.
+     *
+     * @param pixels the pixels of a 512 by 512 image
+     * @return the number of records applied
+     */
+    static int applyJournal(File file, byte[] pixels) throws IOException {
+        final byte[] tile = new byte[16 * 16];
+        int records = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                final int index;
+                try {
+                    index = in.readUnsignedShort();
+                    in.readFully(tile);
+                } catch (EOFException eof) {
+                    break;
+                }
+                if (index >= 1024) throw new IOException("Invalid chunk index: " + index);
+                final int offset = ((index >> 5) << 13) | ((index & 31) << 4);
+                for (int row = 0; row < 16; row += 1) {
+                    System.arraycopy(tile, row << 4, pixels, offset + (row << 9), 16);
+                }
+                records += 1;
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Read an image file with its journal applied, for readers which
+     * do not load regions, such as the web server.  A missing image
+     * file reads as an empty image.
+     */
+    public static PaletteImage readImageWithJournal(File imageFile, File journalFile) throws IOException {
+        final PaletteImage result = imageFile.exists()
+            ? PaletteImage.of(ImageIO.read(imageFile))
+            : new PaletteImage(512, 512);
+        if (journalFile.exists()) {
+            applyJournal(journalFile, result.getPixels());
+        }
+        return result;
+    }
+
+    /**
+     * Delete the journal once the image holds all of it.
+     *
+     * @return true if there is no journal left, false otherwise
+     */
+    private boolean deleteJournal() {
+        if (journalFile.exists() && !journalFile.delete()) {
+            // Its records would overwrite the new image
+            plugin().getLogger().severe("Delete journal " + worldRenderCache.getWorldFileCache().getName() + "/" + worldRenderCache.getRenderType() + "/" + region);
+            return false;
+        }
+        journalRecords = 0;
+        return true;
+    }
+
+    /**
+     * The memory taken up by the image and floors, in bytes.
+     */
+    public long getMemoryBytes() {
+        long result = 0L;
+        if (image != null) result += image.getPixels().length;
+        if (floors != null) result += 2L * floors.length;
+        return result;
+    }
+
+    /**
+     * Keep this region loaded while a renderer writes into its image.
+     * Every pin must be followed by one unpin.  Main thread only.
+     */
+    public void pin() {
+        pins += 1;
+    }
+
+    public void unpin() {
+        if (pins <= 0) throw new IllegalStateException("Not pinned: " + region);
+        pins -= 1;
+    }
+
+    public boolean isPinned() {
+        return pins > 0;
+    }
+
     public void resetNoTick() {
         noTicks = 0;
     }
@@ -104,6 +451,65 @@ public final class RegionFileCache {
         noTicks += 1;
     }
 
+    /**
+     * Check if a block change at the given coordinates may alter the
+     * rendered pixel.  Unknown columns always may.
+     */
+    public boolean isVisible(int blockX, int y, int blockZ) {
+        if (floors == null) return true;
+        return y >= floors[((blockZ & 0x1FF) / FLOOR_CELL) * FLOOR_CELLS + (blockX & 0x1FF) / FLOOR_CELL];
+    }
+
+    /**
+     * Create the floors for a MapImageRenderer to record into, see
+     * MapImageRenderer#addTarget.  The rendered area must be made of
+     * whole cells.
+     */
+    public static short[] createRenderFloors(int sizeX, int sizeZ) {
+        final short[] result = new short[(sizeX / FLOOR_CELL) * (sizeZ / FLOOR_CELL)];
+        Arrays.fill(result, Short.MAX_VALUE);
+        return result;
+    }
+
+    /**
+     * Take the floors a finished renderer recorded.  Main thread
+     * only.
+     *
+     * @param renderFloors the floors of createRenderFloors
+     * @param originX the rendered area within the image
+     * @param originY the rendered area within the image
+     * @param sizeX the width of the rendered area
+     * @param whole true if every pixel of the area was rendered, so
+     *   the new floors replace the old ones.  Otherwise they can only
+     *   lower them.
+     */
+    public void mergeFloors(short[] renderFloors, int originX, int originY, int sizeX, boolean whole) {
+        if (floors == null) {
+            floors = new short[FLOOR_CELLS * FLOOR_CELLS];
+            Arrays.fill(floors, UNKNOWN_FLOOR);
+        }
+        final int cellsX = sizeX / FLOOR_CELL;
+        final int cellX = originX / FLOOR_CELL;
+        final int cellY = originY / FLOOR_CELL;
+        for (int i = 0; i < renderFloors.length; i += 1) {
+            final short floor = renderFloors[i];
+            // Nothing rendered in this cell
+            if (floor == Short.MAX_VALUE) continue;
+            final int index = (cellY + i / cellsX) * FLOOR_CELLS + cellX + i % cellsX;
+            if (whole || floor < floors[index]) {
+                floors[index] = floor;
+            }
+        }
+    }
+
+    /**
+     * The index of a chunk within this region, as used by
+     * dirtyChunks and the journal.
+     */
+    public static int chunkIndex(int chunkX, int chunkZ) {
+        return (chunkX & 31) | ((chunkZ & 31) << 5);
+    }
+
     private static int getInnerChunkIndex(int chunkX, int chunkZ) {
         return (chunkX & 0x1FF) + 32 * (chunkZ & 0x1FF);
     }
@@ -0,0 +1,250 @@
+package com.cavetale.magicmap.file;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import static com.cavetale.magicmap.MagicMapPlugin.plugin;
+
+/**
+ * Load and save region files of all worlds in a fixed number of I/O
+ * threads, so many regions are done in parallel.  At most one job
+ * per I/O thread is in flight, the rest wait in the pending queue.
+ *
+ * Each region is owned by at most one job at a time, see
+ * RegionFileCache#busy.  Jobs are submitted and completed in the
+ * main thread: finished jobs are collected and their callbacks run
+ * on the next tick.
+ *
+ * Write behind saves are limited by a write budget, which refills at
+ * the configured bytes per second, up to one second worth.
+ *
+ * No job is ever dropped.  Before a WorldRenderCache is disabled,
+ * finishJobs runs or waits for all of its jobs.
+ */
+public final class RegionIoPool {
+    private static final double SMOOTHING = 0.05;
+    private final ExecutorService executor;
+    @Getter private final int threads;
+    // Main thread
+    private final ArrayDeque<Job> pending = new ArrayDeque<>();
+    @Getter private int inFlight;
+    // I/O threads to main thread
+    private final Queue<Job> finished = new ConcurrentLinkedQueue<>();
+    // Statistics, main thread
+    @Getter private long completedJobs;
+    @Getter private long failedJobs;
+    /** Time from submission until an I/O thread starts the job, averaged. */
+    @Getter private double waitMillisAverage;
+    /** Time an I/O thread spends on a job, averaged. */
+    @Getter private double ioMillisAverage;
+    @Getter private double ioMillisMax;
+    @Getter private long bytesWritten;
+    // Write budget in bytes, refilled over time, see hasWriteBudget
+    @Getter private double writeBudget;
+    private long lastRefillNanos = System.nanoTime();
+
+    @RequiredArgsConstructor
+    private static final class Job {
+        private final RegionFileCache owner;
+        private final Runnable io;
+        private final Runnable callback;
+        private final long submitNanos = System.nanoTime();
+        private long startNanos;
+        private long endNanos;
+        private boolean failed;
+        // Run in the main thread, never in flight
+        private boolean inline;
+    }
+
+    public RegionIoPool(final int threads) {
+        this.threads = threads;
+        final AtomicInteger threadCounter = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+                final Thread thread = new Thread(runnable, "MagicMap I/O #" + threadCounter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+    }
+
+    /**
+     * Queue a job which takes ownership of the region until its
+     * callback has run.
+     *
+     * @param io the work, run in an I/O thread
+     * @param callback run in the main thread once the work is done,
+     *   even if it threw
+     * @throws IllegalStateException if the region is already owned
+     */
+    public void submit(RegionFileCache owner, Runnable io, Runnable callback) {
+        if (owner.isBusy()) {
+            throw new IllegalStateException("Region busy: " + owner.getWorldRenderCache().getWorldFileCache().getName()
+                                            + "/" + owner.getWorldRenderCache().getRenderType()
+                                            + "/" + owner.getRegion());
+        }
+        owner.setBusy(true);
+        pending.add(new Job(owner, io, callback));
+        startPending();
+    }
+
+    /**
+     * Complete finished jobs and start pending ones.  Called once per
+     * tick.
+     */
+    public void tick() {
+        refillWriteBudget();
+        completeFinished();
+        startPending();
+    }
+
+    private void completeFinished() {
+        Job job;
+        while ((job = finished.poll()) != null) {
+            if (!job.inline) inFlight -= 1;
+            completedJobs += 1;
+            if (job.failed) failedJobs += 1;
+            final double waitMillis = (double) (job.startNanos - job.submitNanos) / 1_000_000.0;
+            final double ioMillis = (double) (job.endNanos - job.startNanos) / 1_000_000.0;
+            waitMillisAverage += (waitMillis - waitMillisAverage) * SMOOTHING;
+            ioMillisAverage += (ioMillis - ioMillisAverage) * SMOOTHING;
+            ioMillisMax = Math.max(ioMillisMax, ioMillis);
+            job.owner.setBusy(false);
+            job.callback.run();
+        }
+    }
+
+    private void startPending() {
+        while (inFlight < threads && !pending.isEmpty()) {
+            final Job job = pending.poll();
+            inFlight += 1;
+            try {
+                executor.execute(() -> run(job));
+            } catch (RejectedExecutionException ree) {
+                // We are shutting down
+                inFlight -= 1;
+                runInline(job);
+            }
+        }
+    }
+
+    private void run(Job job) {
+        job.startNanos = System.nanoTime();
+        job.failed = true;
+        try {
+            job.io.run();
+            job.failed = false;
+        } catch (Exception e) {
+            plugin().getLogger().log(Level.SEVERE, "[RegionIo] " + job.owner.getWorldRenderCache().getWorldFileCache().getName()
+                                     + "/" + job.owner.getWorldRenderCache().getRenderType()
+                                     + "/" + job.owner.getRegion(), e);
+        } finally {
+            // Even an Error must hand the region back to the main
+            // thread.
+            job.endNanos = System.nanoTime();
+            finished.add(job);
+        }
+    }
+
+    /**
+     * Run a job and its callback in the calling main thread.
+     */
+    private void runInline(Job job) {
+        job.inline = true;
+        run(job);
+        completeFinished();
+    }
+
+    private void refillWriteBudget() {
+        final long now = System.nanoTime();
+        final long maxBytesPerSecond = plugin().getWriteBehindMaxBytesPerSecond();
+        if (maxBytesPerSecond > 0L) {
+            final double seconds = (double) (now - lastRefillNanos) / 1_000_000_000.0;
+            writeBudget = Math.min((double) maxBytesPerSecond, writeBudget + seconds * (double) maxBytesPerSecond);
+        }
+        lastRefillNanos = now;
+    }
+
+    /**
+     * Check if write behind saves may be scheduled.  Saves which
+     * cannot wait, such as before unloading a region, ignore this.
+     */
+    public boolean hasWriteBudget() {
+        return plugin().getWriteBehindMaxBytesPerSecond() <= 0L || writeBudget > 0.0;
+    }
+
+    /**
+     * Take the expected size of a save from the write budget before
+     * it starts, so that saves scheduled in the same tick see it.
+     */
+    public void reserveWrite(long bytes) {
+        writeBudget -= (double) bytes;
+    }
+
+    /**
+     * Replace the reservation of a finished save with the bytes it
+     * actually wrote.
+     */
+    public void chargeWrite(long bytes, long reservedBytes) {
+        bytesWritten += bytes;
+        writeBudget -= (double) (bytes - reservedBytes);
+    }
+
+    public int getQueueDepth() {
+        return pending.size();
+    }
+
+    /**
+     * Make sure no job of the given cache is left, so it can be
+     * disabled without losing a save.  Pending jobs are taken out of
+     * the queue and run in the calling main thread.  Running jobs are
+     * waited for.
+     */
+    public void finishJobs(WorldRenderCache cache) {
+        for (Iterator<Job> iter = pending.iterator(); iter.hasNext();) {
+            final Job job = iter.next();
+            if (job.owner.getWorldRenderCache() != cache) continue;
+            iter.remove();
+            runInline(job);
+        }
+        awaitJobs(cache);
+    }
+
+    private void awaitJobs(WorldRenderCache cache) {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30L);
+        while (cache == null ? inFlight > 0 : cache.countBusyRegions() > 0) {
+            if (System.nanoTime() >= deadline) {
+                plugin().getLogger().severe("[RegionIo] Timed out waiting for jobs"
+                                            + (cache != null ? " of " + cache.getWorldFileCache().getName() + "/" + cache.getRenderType() : ""));
+                return;
+            }
+            try {
+                Thread.sleep(1L);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            completeFinished();
+        }
+    }
+
+    /**
+     * Run all pending jobs in the calling main thread, wait for the
+     * running ones, and stop the I/O threads.
+     */
+    public void shutdown() {
+        Job job;
+        while ((job = pending.poll()) != null) {
+            runInline(job);
+        }
+        awaitJobs(null);
+        executor.shutdown();
+    }
+}
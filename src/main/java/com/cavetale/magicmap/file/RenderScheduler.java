@@ -0,0 +1,124 @@
+package com.cavetale.magicmap.file;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import lombok.Data;
+import lombok.Getter;
+import org.bukkit.configuration.ConfigurationSection;
+import static com.cavetale.magicmap.MagicMapPlugin.plugin;
+
+/**
+ * Share one render budget per tick between all worlds.  The budget
+ * comes from the MsptController, which is fed the duration of every
+ * tick.  Worlds with pending chunk rerenders
+ * go first, then those which used the least time relative to their
+ * weight.  Each world gets its weighted share of what is left, and
+ * time a world does not use passes on to the next one.
+ */
+public final class RenderScheduler {
+    private static final double SMOOTHING = 0.05;
+    private static final long LOG_INTERVAL = 20L * 60L;
+    @Getter private final MsptController controller = new MsptController();
+    private final Map<String, Integer> weights = new HashMap<>();
+    @Getter private double budgetMillis;
+    private long ticks;
+    /** Render time of all worlds per tick, averaged. */
+    @Getter private double usedMillisAverage;
+    @Getter private final Map<String, Usage> usageMap = new HashMap<>();
+
+    @Data
+    public static final class Usage {
+        /** Render time per tick, averaged. */
+        private double millisAverage;
+        private double totalMillis;
+        private long ticks;
+    }
+
+    public void loadConfig() {
+        final ConfigurationSection config = plugin().getConfig().getConfigurationSection("RenderBudget");
+        if (config != null) {
+            controller.configure(config.getDouble("TargetMspt", 30.0),
+                                 config.getDouble("ProportionalGain", 0.5),
+                                 config.getDouble("IntegralGain", 0.1),
+                                 config.getDouble("MinMillis", 1.0),
+                                 config.getDouble("MaxMillis", 25.0));
+        }
+        weights.clear();
+        final ConfigurationSection weightConfig = plugin().getConfig().getConfigurationSection("RenderWeights");
+        if (weightConfig != null) {
+            for (String key : weightConfig.getKeys(false)) {
+                weights.put(key, Math.max(1, weightConfig.getInt(key)));
+            }
+        }
+    }
+
+    public int getWeight(String worldName) {
+        return weights.getOrDefault(worldName, 1);
+    }
+
+    public Usage getUsage(String worldName) {
+        return usageMap.computeIfAbsent(worldName, n -> new Usage());
+    }
+
+    /**
+     * Called at the end of every server tick with its duration.
+     */
+    public void onTickEnd(double mspt) {
+        controller.update(mspt);
+    }
+
+    public void tick(Collection<WorldFileCache> worlds) {
+        budgetMillis = controller.getBudgetMillis();
+        final List<WorldFileCache> candidates = new ArrayList<>();
+        int remainingWeight = 0;
+        for (WorldFileCache world : worlds) {
+            if (!world.hasRenderWork()) continue;
+            candidates.add(world);
+            remainingWeight += getWeight(world.getName());
+        }
+        ticks += 1;
+        if (!candidates.isEmpty() && ticks % LOG_INTERVAL == 0L) {
+            plugin().getLogger().info("[RenderScheduler] budget=" + String.format("%.1f", budgetMillis) + "ms"
+                                      + " mspt=" + String.format("%.1f", controller.getLastMspt())
+                                      + " target=" + String.format("%.1f", controller.getTargetMspt())
+                                      + " used=" + String.format("%.1f", usedMillisAverage) + "ms");
+        }
+        candidates.sort(Comparator.comparing((WorldFileCache w) -> !w.hasChunkRenderWork())
+                        .thenComparingDouble(w -> getUsage(w.getName()).getMillisAverage() / getWeight(w.getName())));
+        final Map<String, Double> usedMap = new HashMap<>();
+        double remainingMillis = budgetMillis;
+        double usedMillis = 0.0;
+        for (WorldFileCache world : candidates) {
+            if (remainingMillis <= 0.0) break;
+            final int weight = getWeight(world.getName());
+            final double sliceMillis = remainingMillis * weight / remainingWeight;
+            remainingWeight -= weight;
+            final long start = System.nanoTime();
+            world.tick(start + Math.round(sliceMillis * 1_000_000.0));
+            final double used = (double) (System.nanoTime() - start) / 1_000_000.0;
+            remainingMillis -= used;
+            usedMillis += used;
+            usedMap.put(world.getName(), used);
+        }
+        usedMillisAverage += (usedMillis - usedMillisAverage) * SMOOTHING;
+        for (WorldFileCache world : worlds) {
+            final Usage usage = getUsage(world.getName());
+            final double used = usedMap.getOrDefault(world.getName(), 0.0);
+            usage.millisAverage += (used - usage.millisAverage) * SMOOTHING;
+            usage.totalMillis += used;
+            usage.ticks += 1;
+            world.cleanUp();
+        }
+    }
+
+    /**
+     * Forget a world which was disabled.
+     */
+    public void remove(String worldName) {
+        usageMap.remove(worldName);
+    }
+}
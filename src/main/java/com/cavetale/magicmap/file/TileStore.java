@@ -0,0 +1,245 @@
+package com.cavetale.magicmap.file;
+
+import com.cavetale.core.struct.Vec2i;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Store all region images of one WorldRenderCache in one memory
+ * mapped file instead of one PNG file each.  Every region gets a
+ * fixed size slot holding its PaletteImage pixels as they are, so
+ * reading and writing a region is a single copy, without opening a
+ * file or inflating a PNG.
+ *
+ * The data file, tiles.dat, is a sequence of slots.  The index file,
+ * tiles.idx, has one entry per slot: the region as two ints, and a
+ * sequence number as a long, which is 0 for a free slot.
+ *
+ * A slot is never overwritten while it is in use.  Each write goes
+ * into a free slot, which is forced to disk before its index entry
+ * is written, with a sequence number higher than any before.  Only
+ * then is the old slot of the region freed for reuse.  If two entries
+ * name the same region after a crash, the higher sequence number
+ * wins, so a region always reads either its old or its new pixels.
+ *
+ * The data file is mapped in segments of SEGMENT_SLOTS slots.
+ * Methods may be called from any thread.  Different regions may be
+ * written at the same time.  The same region must not.
+ */
+public final class TileStore {
+    public static final int TILE_SIZE = 512 * 512;
+    private static final int SEGMENT_SLOTS = 64;
+    private static final int INDEX_ENTRY_SIZE = 16;
+    private final File dataFile;
+    private final File indexFile;
+    private FileChannel data;
+    private FileChannel index;
+    private final Map<Long, Integer> slots = new HashMap<>();
+    // Slots in use, including those still being written
+    private final BitSet usedSlots = new BitSet();
+    // Entries in the index file, free or not
+    private int indexEntries;
+    private long nextSequence = 1L;
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+
+    public TileStore(final File folder) {
+        this.dataFile = new File(folder, "tiles.dat");
+        this.indexFile = new File(folder, "tiles.idx");
+    }
+
+    private static long key(Vec2i region) {
+        return ((long) region.x << 32) | ((long) region.z & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Open the files and read the index.  A trailing partial index
+     * entry is cut off.  Entries superseded by a newer one of the
+     * same region are freed.
+     */
+    public synchronized void open() throws IOException {
+        data = FileChannel.open(dataFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        index = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        final long entries = Math.min(index.size() / INDEX_ENTRY_SIZE, data.size() / TILE_SIZE);
+        index.truncate(entries * INDEX_ENTRY_SIZE);
+        indexEntries = (int) entries;
+        final ByteBuffer buffer = ByteBuffer.allocate(indexEntries * INDEX_ENTRY_SIZE);
+        while (buffer.hasRemaining()) {
+            if (index.read(buffer, buffer.position()) < 0) break;
+        }
+        buffer.flip();
+        final long[] sequences = new long[indexEntries];
+        for (int slot = 0; slot < indexEntries; slot += 1) {
+            final Vec2i region = Vec2i.of(buffer.getInt(), buffer.getInt());
+            final long sequence = buffer.getLong();
+            sequences[slot] = sequence;
+            if (sequence <= 0L) continue;
+            nextSequence = Math.max(nextSequence, sequence + 1L);
+            final Integer old = slots.get(key(region));
+            if (old != null && sequences[old] > sequence) {
+                writeIndexEntry(slot, null, 0L);
+                continue;
+            }
+            if (old != null) {
+                writeIndexEntry(old, null, 0L);
+                usedSlots.clear(old);
+            }
+            slots.put(key(region), slot);
+            usedSlots.set(slot);
+        }
+    }
+
+    /**
+     * Write all mapped changes to disk and close the files.  The
+     * mappings go away once they are garbage collected.
+     */
+    public synchronized void close() throws IOException {
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+        if (index != null) index.force(false);
+        segments.clear();
+        slots.clear();
+        usedSlots.clear();
+        indexEntries = 0;
+        if (data != null) data.close();
+        if (index != null) index.close();
+        data = null;
+        index = null;
+    }
+
+    public synchronized boolean contains(Vec2i region) {
+        return slots.containsKey(key(region));
+    }
+
+    public synchronized int getSlotCount() {
+        return slots.size();
+    }
+
+    /**
+     * Copy the stored pixels of a region into the image.  The copy
+     * happens under the lock, so the slot cannot be freed and reused
+     * meanwhile.
+     *
+     * @return true if the region was found, false otherwise
+     */
+    public synchronized boolean read(Vec2i region, PaletteImage image) throws IOException {
+        final Integer slot = slots.get(key(region));
+        if (slot == null) return false;
+        slotBuffer(slot).get(image.getPixels(), 0, TILE_SIZE);
+        return true;
+    }
+
+    /**
+     * Copy the pixels of the image into a free slot, then make it the
+     * slot of the region, see the class comment.
+     */
+    public void write(Vec2i region, PaletteImage image) throws IOException {
+        final int newSlot;
+        final MappedByteBuffer buffer;
+        synchronized (this) {
+            newSlot = allocateSlot();
+            try {
+                buffer = slotBuffer(newSlot);
+            } catch (IOException ioe) {
+                usedSlots.clear(newSlot);
+                throw ioe;
+            }
+        }
+        try {
+            buffer.put(image.getPixels(), 0, TILE_SIZE);
+            buffer.force();
+        } catch (RuntimeException re) {
+            // Mapped buffers throw unchecked exceptions on I/O errors
+            synchronized (this) {
+                usedSlots.clear(newSlot);
+            }
+            throw new IOException("Write tile " + region, re);
+        }
+        synchronized (this) {
+            try {
+                if (index == null) throw new IOException("Tile store closed: " + indexFile);
+                writeIndexEntry(newSlot, region, nextSequence++);
+                index.force(false);
+            } catch (IOException ioe) {
+                usedSlots.clear(newSlot);
+                throw ioe;
+            }
+            final Integer oldSlot = slots.put(key(region), newSlot);
+            if (oldSlot != null) freeSlot(oldSlot);
+        }
+    }
+
+    /**
+     * Forget the slot of a region, so the next read misses.  Called
+     * when a save could not update the slot, so it does not shadow
+     * newer data elsewhere.
+     */
+    public synchronized void drop(Vec2i region) throws IOException {
+        final Integer slot = slots.remove(key(region));
+        if (slot == null) return;
+        freeSlot(slot);
+    }
+
+    /**
+     * Find the lowest free slot and mark it used.  A slot past the
+     * end of the index gets a free entry right away, so the index
+     * never has a gap.
+     */
+    private int allocateSlot() throws IOException {
+        final int slot = usedSlots.nextClearBit(0);
+        usedSlots.set(slot);
+        if (slot >= indexEntries) {
+            if (index == null) {
+                usedSlots.clear(slot);
+                throw new IOException("Tile store closed: " + indexFile);
+            }
+            writeIndexEntry(slot, null, 0L);
+            indexEntries = slot + 1;
+        }
+        return slot;
+    }
+
+    private void freeSlot(int slot) throws IOException {
+        usedSlots.clear(slot);
+        if (index == null) throw new IOException("Tile store closed: " + indexFile);
+        writeIndexEntry(slot, null, 0L);
+    }
+
+    /**
+     * @param region the region, or null for a free slot
+     * @param sequence the sequence number, or 0 for a free slot
+     */
+    private void writeIndexEntry(int slot, Vec2i region, long sequence) throws IOException {
+        final ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+        entry.putInt(region != null ? region.x : 0)
+            .putInt(region != null ? region.z : 0)
+            .putLong(sequence)
+            .flip();
+        while (entry.hasRemaining()) {
+            index.write(entry, (long) slot * INDEX_ENTRY_SIZE + entry.position());
+        }
+    }
+
+    /**
+     * Get a buffer covering exactly one slot, mapping its segment if
+     * necessary.  Mapping past the end grows the file.
+     */
+    private MappedByteBuffer slotBuffer(int slot) throws IOException {
+        if (data == null) throw new IOException("Tile store closed: " + dataFile);
+        final int segmentIndex = slot / SEGMENT_SLOTS;
+        while (segments.size() <= segmentIndex) {
+            final long offset = (long) segments.size() * SEGMENT_SLOTS * TILE_SIZE;
+            segments.add(data.map(FileChannel.MapMode.READ_WRITE, offset, (long) SEGMENT_SLOTS * TILE_SIZE));
+        }
+        return segments.get(segmentIndex).slice((slot % SEGMENT_SLOTS) * TILE_SIZE, TILE_SIZE);
+    }
+}
@@ -0,0 +1,50 @@
+package com.cavetale.magicmap.file;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import org.bukkit.HeightMap;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.data.Waterlogged;
+
+/**
+ * Read blocks from the live world.  Main thread only.
+ */
+@Getter
+@RequiredArgsConstructor
+public final class WorldBlockSource implements MapBlockSource {
+    private final World world;
+
+    /**
+     * Chunks which are not loaded would be loaded, or even generated,
+     * by reading from them.
+     */
+    @Override
+    public boolean hasChunk(int chunkX, int chunkZ) {
+        return world.isChunkLoaded(chunkX, chunkZ);
+    }
+
+    @Override
+    public Material getType(int x, int y, int z) {
+        return world.getType(x, y, z);
+    }
+
+    @Override
+    public boolean isWaterlogged(int x, int y, int z) {
+        return world.getBlockData(x, y, z) instanceof Waterlogged w && w.isWaterlogged();
+    }
+
+    @Override
+    public int getLightFromSky(int x, int y, int z) {
+        return world.getBlockAt(x, y, z).getLightFromSky();
+    }
+
+    /**
+     * The WORLD_SURFACE height map tracks exactly the highest non-air
+     * block.
+     */
+    @Override
+    public int getHighestBlockY(int x, int z) {
+        return world.getHighestBlockYAt(x, z, HeightMap.WORLD_SURFACE);
+    }
+}
@@ -4,15 +4,22 @@ import com.cavetale.core.connect.NetworkServer;
 import com.cavetale.core.struct.Vec2i;
 import com.cavetale.core.util.Json;
 import com.cavetale.magicmap.RenderType;
+import com.cavetale.magicmap.anvil.OfflineRenderer;
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.function.Consumer;
 import java.util.logging.Level;
 import lombok.Data;
@@ -37,16 +44,23 @@ public final class WorldFileCache {
     // Chunks
     private final Map<Vec2i, Integer> chunkTicketMap = new HashMap<>();
     private final Set<Vec2i> chunksLoading = new HashSet<>();
+    private final Set<Vec2i> chunksMissing = new HashSet<>();
     // Meta
     private File tagFile;
     private WorldFileTag tag;
-    // Timing
-    private static final double TPS_LOWER_THRESHOLD = 19.5;
-    private static final double TPS_UPPER_THRESHOLD = 19.9;
-    private long timeAdjustmentCooldown = 0L;
     // Rendering
     private ChunkRenderTask chunkRenderTask;
-    private List<Vec2i> chunkRenderQueue = new ArrayList<>();
+    private final ChunkRenderQueue chunkRenderQueue = new ChunkRenderQueue();
+    // Block coordinates of everyone looking at this map, set by Worlds
+    private List<Vec2i> viewers = List.of();
+    // Block changes which no RenderType could show
+    private long hiddenBlockChanges;
+    // Changes to hot chunks, held back until the next release
+    private final HotChunkTracker hotChunkTracker = new HotChunkTracker();
+    private final ChunkRenderQueue hotChunkQueue = new ChunkRenderQueue();
+    private long lastHotChunkRelease = System.currentTimeMillis();
+    // Set while an offline render of this world is running
+    private boolean offlineRendering;
 
     public WorldFileCache(final NetworkServer server, final String name, final File worldFolder) {
         this.server = server;
@@ -126,6 +140,9 @@ public final class WorldFileCache {
             WorldRenderCache worldRenderCache = new WorldRenderCache(this, renderType, magicMapFolder);
             renderTypeMap.put(renderType, worldRenderCache);
             worldRenderCache.enable();
+            if (plugin().isTileStore()) {
+                worldRenderCache.openTileStore();
+            }
         }
     }
 
@@ -174,21 +191,39 @@ public final class WorldFileCache {
     /**
      * Load a chunk asynchronously and keep it loaded via chunk ticket.
      * This method, along with unhold and unholdAll, utilizes the
-     * chunkTicketMap and chunksLoading exclusively.
+     * chunkTicketMap, chunksLoading and chunksMissing exclusively.
+     *
+     * @param generate if false, chunks which were never generated are
+     *   not generated but added to chunksMissing instead.
      */
-    protected void holdChunk(final Vec2i chunk) {
+    protected void holdChunk(final Vec2i chunk, final boolean generate) {
         final int value = chunkTicketMap.getOrDefault(chunk, 0);
         chunkTicketMap.put(chunk, value + 1);
         if (value > 0) return;
         if (chunksLoading.contains(chunk)) return;
         chunksLoading.add(chunk);
         final World world = getWorld();
-        world.getChunkAtAsync(chunk.x, chunk.z, (Consumer<Chunk>) loadedChunk -> {
+        world.getChunkAtAsync(chunk.x, chunk.z, generate, (Consumer<Chunk>) loadedChunk -> {
                 if (!chunksLoading.remove(chunk)) return;
+                if (loadedChunk == null) {
+                    chunksMissing.add(chunk);
+                    return;
+                }
                 loadedChunk.addPluginChunkTicket(plugin());
             });
     }
 
+    protected void holdChunk(final Vec2i chunk) {
+        holdChunk(chunk, true);
+    }
+
+    /**
+     * Check if a held chunk turned out to be never generated.
+     */
+    protected boolean isChunkMissing(Vec2i chunk) {
+        return chunksMissing.contains(chunk);
+    }
+
     protected void unholdChunk(Vec2i chunk) {
         final var value = chunkTicketMap.getOrDefault(chunk, 0);
         if (value == 0) return;
@@ -196,12 +231,16 @@ public final class WorldFileCache {
             chunkTicketMap.put(chunk, value - 1);
         } else {
             chunkTicketMap.remove(chunk);
+            // A load still in progress must not add a ticket
+            chunksLoading.remove(chunk);
+            chunksMissing.remove(chunk);
             getWorld().removePluginChunkTicket(chunk.x, chunk.z, plugin());
         }
     }
 
     private void unholdAllChunks() {
         chunksLoading.clear();
+        chunksMissing.clear();
         chunkTicketMap.clear();
         getWorld().removePluginChunkTickets(plugin());
     }
@@ -285,202 +324,123 @@ public final class WorldFileCache {
         return renderTypeMap.get(renderType);
     }
 
-    protected void tick(final long startTime) {
+    /**
+     * Called by the RenderScheduler with the time this world may use
+     * in this tick.
+     *
+     * @param deadlineNanos the System#nanoTime to stop at
+     */
+    protected void tick(final long deadlineNanos) {
         final FullRenderTag fullRender = tag.getFullRender();
         if (fullRender != null && !fullRender.isPaused()) {
-            fullRenderIter(fullRender, startTime);
+            fullRenderIter(fullRender, deadlineNanos);
         } else {
             boolean didSomething = false;
             if (!persistent) {
                 for (WorldRenderCache render : renderTypeMap.values()) {
-                    if (render.tickChunkRenderer(startTime)) {
+                    if (render.tickChunkRenderer(deadlineNanos)) {
                         didSomething = true;
                     }
                 }
             }
             if (!didSomething) {
-                if (tickChunkRenderer(startTime)) {
+                if (tickChunkRenderer(deadlineNanos)) {
                     didSomething = true;
                 }
             }
         }
-        cleanUp();
     }
 
-    private void fullRenderIter(FullRenderTag fullRender, final long startTime) {
-        final double tps = Bukkit.getTPS()[0];
-        if (fullRender.getTimeout() > startTime) {
-            if (tps > TPS_UPPER_THRESHOLD) {
-                fullRender.setTimeout(0L);
-            } else {
-                fullRender.setStatus("Timeout");
-                return;
-            }
-        } else if (fullRender.getTimeout() > 0L) {
-            fullRender.setTimeout(0L);
-        }
-        final long maxMillis = fullRender.getMaxMillisPerTick();
-        if (tps < TPS_LOWER_THRESHOLD) {
-            // Lower millis per tick if necessary
-            fullRender.setTimeout(startTime + 10_000L);
-            if (maxMillis > 10L) {
-                final long newMaxMillis = maxMillis - 1;
-                fullRender.setMaxMillisPerTick(newMaxMillis);
-                timeAdjustmentCooldown = startTime + 600_000L;
-                plugin().getLogger().info("[" + name + "] Full render decreasing max millis per tick: "
-                                          + maxMillis + " => " + newMaxMillis
-                                          + ", tps=" + String.format("%.01f", tps));
-            }
-            fullRender.setStatus("Decreasing max millis per tick");
-            return;
-        } else if (tps > TPS_UPPER_THRESHOLD && startTime > timeAdjustmentCooldown && maxMillis < 50) {
-            // Every now and then, try raising millis per tick
-            final long newMaxMillis = maxMillis + 1L;
-            fullRender.setMaxMillisPerTick(newMaxMillis);
-            timeAdjustmentCooldown = startTime + 60_000L;
-            plugin().getLogger().info("[" + name + "] Full render increasing max millis per tick: "
-                                      + maxMillis + " => " + newMaxMillis);
-        }
-        final long stopTime = startTime + maxMillis;
-        final World world = getWorld();
-        final Vec2i currentRegion = fullRender.getCurrentRegion();
-        if (currentRegion != null) {
-            if (!fullRender.isChunksHeld()) {
-                // After a restart or reload, chunks will no longer be
-                // held.
-                for (Vec2i chunkVector : fullRender.getCurrentChunks()) {
-                    holdChunk(chunkVector);
-                }
-                fullRender.setChunksHeld(true);
-            }
-            // Make sure all chunks are loaded
-            int unloadedChunkCount = 0;
-            for (Vec2i chunk : fullRender.getCurrentChunks()) {
-                if (world.isChunkLoaded(chunk.x, chunk.z)) continue;
-                unloadedChunkCount += 1;
-            }
-            if (unloadedChunkCount > 0) {
-                fullRender.setStatus("Waiting on chunks");
-                return;
+    /**
+     * Check if there is any render work to do.  Used by the
+     * RenderScheduler.
+     */
+    protected boolean hasRenderWork() {
+        if (tag == null) return false;
+        if (tag.getFullRender() != null && !tag.getFullRender().isPaused()) return true;
+        return hasChunkRenderWork();
+    }
+
+    /**
+     * Check if there are chunk rerenders pending, which the
+     * RenderScheduler favors over full renders.
+     */
+    protected boolean hasChunkRenderWork() {
+        if (chunkRenderTask != null || !chunkRenderQueue.isEmpty()) return true;
+        if (!persistent) {
+            for (WorldRenderCache render : renderTypeMap.values()) {
+                if (render.getChunkRenderTask() != null || !render.getChunkRenderQueue().isEmpty()) return true;
             }
-            int unloadedRegionCount = 0;
-            for (WorldRenderCache worldRenderCache : renderTypeMap.values()) {
-                final RegionFileCache regionFileCache = worldRenderCache.loadRegion(currentRegion);
-                if (regionFileCache.getState() != RegionFileCache.State.LOADED) {
-                    unloadedRegionCount += 1;
-                }
+        }
+        return false;
+    }
+
+    private void fullRenderIter(FullRenderTag fullRender, final long deadlineNanos) {
+        // The RenderScheduler paces the full render via the deadline.
+        fullRender.setMaxMillisPerTick(Math.max(0L, (deadlineNanos - System.nanoTime()) / 1_000_000L));
+        final World world = getWorld();
+        final List<FullRenderRegion> activeRegions = fullRender.getActiveRegions();
+        if (fullRender.getCurrentRegion() != null) {
+            fullRender.getRegionQueue().add(0, fullRender.getCurrentRegion());
+            fullRender.setCurrentRegion(null);
+        }
+        // Work on all regions in flight
+        boolean regionFinished = false;
+        for (Iterator<FullRenderRegion> iter = activeRegions.iterator(); iter.hasNext();) {
+            final FullRenderRegion activeRegion = iter.next();
+            if (!fullRenderRegion(activeRegion, fullRender, world, deadlineNanos)) continue;
+            // Region finished!
+            for (Vec2i chunk : activeRegion.getChunks()) {
+                unholdChunk(chunk);
             }
-            if (unloadedRegionCount > 0) {
-                fullRender.setStatus("Waiting on map regions");
-                return;
-            }
-            // All chunks loaded!
-            // Make sure there is a renderer and start rendering
-            final List<MapImageRenderer> renderers;
-            if (fullRender.getRenderers() == null) {
-                renderers = new ArrayList<>();
-                final int x = currentRegion.x << 9;
-                final int z = currentRegion.z << 9;
-                for (WorldRenderCache worldRenderCache : renderTypeMap.values()) {
-                    final RegionFileCache regionFileCache = worldRenderCache.getRegion(currentRegion);
-                    final MapImageRenderer renderer;
-                    renderer = new MapImageRenderer(world,
-                                                    regionFileCache.getImage(),
-                                                    worldRenderCache.getRenderType(),
-                                                    x, z, 512, 512,
-                                                    fullRender.getWorldBorder());
-                    renderers.add(renderer);
-                }
-                fullRender.setRenderers(renderers);
+            activeRegion.setChunksHeld(false);
+            activeRegion.setRenderers(null);
+            activeRegion.setSnapshots(null);
+            iter.remove();
+            regionFinished = true;
+        }
+        // Pull the next regions from the queue
+        final List<Vec2i> regionQueue = fullRender.getRegionQueue();
+        final int maxActiveRegions = Math.max(1, plugin().getFullRenderRegions());
+        boolean regionPulled = false;
+        while (activeRegions.size() < maxActiveRegions && !regionQueue.isEmpty()) {
+            final Vec2i nextRegion = regionQueue.remove(0);
+            final FullRenderRegion activeRegion = new FullRenderRegion();
+            activeRegion.setRegion(nextRegion);
+            if (isRegionGenerated(world, nextRegion)) {
+                activeRegion.getChunks().addAll(getFullRenderChunks(nextRegion));
+                activeRegion.setStatus("Region pulled");
             } else {
-                renderers = fullRender.getRenderers();
+                // Rendered without chunks, thus empty
+                activeRegion.setStatus("Region not generated");
             }
-            // Renderers are enabled, let's see if they are
-            // finished. If not, iterate a few times.
-            int notFinishedCount = 0;
-            for (MapImageRenderer renderer : renderers) {
-                if (!renderer.isFinished()) {
-                    notFinishedCount += 1;
-                }
+            for (Vec2i chunkVector : activeRegion.getChunks()) {
+                holdChunk(chunkVector, false);
             }
-            if (notFinishedCount > 0) {
-                do {
-                    for (MapImageRenderer renderer : renderers) {
-                        if (renderer.isFinished()) {
-                            continue;
-                        }
-                        ChunkLoadListener.chunkLoadListener().setCallback(c -> {
-                                final Vec2i chunkVector = Vec2i.of(c);
-                                plugin().getLogger().warning("[ChunkLoad] WorldFileCache#fullRenderIter " + name + " Region"
-                                                             + " " + (renderer.getMinWorldX() >> 9)
-                                                             + "," + (renderer.getMinWorldZ() >> 9)
-                                                             + " Chunk " + chunkVector
-                                                             + " " + (fullRender.getCurrentChunks().contains(chunkVector)
-                                                                      ? "in currentChunks"
-                                                                      : "NOT in currentChunks"));
-                            });
-                        renderer.run(16);
-                        ChunkLoadListener.chunkLoadListener().setCallback(null);
-                        if (System.currentTimeMillis() >= stopTime) {
-                            break;
-                        }
-                    }
-                } while (System.currentTimeMillis() < stopTime);
-                fullRender.setStatus("Rendering");
-                return;
+            activeRegion.setChunksHeld(true);
+            activeRegions.add(activeRegion);
+            regionPulled = true;
+            if (nextRegion.equals(fullRender.getPrefetchRegion())) {
+                // The region holds its own tickets now
+                unholdPrefetch(fullRender);
             }
-            // Schedule saving
-            for (WorldRenderCache worldRenderCache : renderTypeMap.values()) {
-                final RegionFileCache regionFileCache = worldRenderCache.getRegion(currentRegion);
-                worldRenderCache.scheduleSave(regionFileCache);
-            }
-        } // end if currentRegion != null
-        // Region finished!
-        for (Vec2i chunk : fullRender.getCurrentChunks()) {
-            unholdChunk(chunk);
-        }
-        fullRender.setChunksHeld(false);
-        fullRender.setRenderers(null);
-        fullRender.setCurrentRegion(null);
-        fullRender.getCurrentChunks().clear();
-        // Pull the next region from the queue
-        final List<Vec2i> regionQueue = fullRender.getRegionQueue();
-        if (!regionQueue.isEmpty()) {
-            final Vec2i nextRegion = regionQueue.remove(0);
-            fullRender.setCurrentRegion(nextRegion);
-            // Compute chunks: All chunk within the region, plus one
-            // for padding, because the renderer needs one additional
-            // block right outside the region border for shading.
-            //
-            // NOTE this appeared to work fine even if we did not
-            // select some of the outermost layers of chunks.  Up to
-            // two layers could be omitted.  We still do them all to
-            // be on the safe side.
-            final int ax = (nextRegion.x << 5);
-            final int az = (nextRegion.z << 5);
-            final int bx = ax + 31;
-            final int bz = az + 32;
-            for (int z = az; z <= bz; z += 1) {
-                for (int x = ax; x <= bx; x += 1) {
-                    final Vec2i chunkVector = Vec2i.of(x, z);
-                    fullRender.getCurrentChunks().add(chunkVector);
-                    holdChunk(chunkVector);
-                }
-            }
-            fullRender.setChunksHeld(true);
+        }
+        if (regionFinished || regionPulled) {
             saveTag();
-            fullRender.setStatus("Region pulled");
+        }
+        prefetch(fullRender, world);
+        if (!regionQueue.isEmpty() || activeRegions.size() >= maxActiveRegions) {
+            fullRender.setStatus(activeRegions.size() + " regions in flight");
             return;
         }
-        fullRender.setStatus("New ring");
-        // No current region, no region queue.  Let's build a new
-        // region queue around the current ring and quit if none are
-        // within the border.
+        // The region queue is empty.  Let's build a new region queue
+        // around the current ring and quit if none are within the
+        // border and no regions are left in flight.
         final int currentRing = fullRender.getCurrentRing();
         final Vec2i centerRegion = Vec2i.of(fullRender.getWorldBorder().getCenterX() >> 9,
                                             fullRender.getWorldBorder().getCenterZ() >> 9);
         if (currentRing == 0) {
-            fullRender.getRegionQueue().add(centerRegion);
+            regionQueue.add(centerRegion);
         } else {
             final int ringLength = currentRing * 2 + 1;
             final List<Vec2i> list = new ArrayList<>();
@@ -492,51 +452,339 @@ public final class WorldFileCache {
             }
             for (Vec2i region : list) {
                 if (!fullRender.getWorldBorder().containsRegion(region)) continue;
-                fullRender.getRegionQueue().add(region);
+                regionQueue.add(region);
             }
         }
-        fullRender.setCurrentRing(currentRing + 1);
-        if (fullRender.getRegionQueue().isEmpty()) {
-            fullRender.setStatus("Finished");
-            tag.setFullRender(null);
-            saveTag();
-            final Duration duration = Duration.ofMillis(System.currentTimeMillis() - fullRender.getStartTime());
-            final String durationString = duration.toDays() + "d"
-                + " " + duration.toHours() + "h"
-                + " " + duration.toMinutes() + "m"
-                + " " + duration.toSeconds() + "s";
-            plugin().getLogger().info("[" + name + "] full render finished in " + durationString);
+        if (!regionQueue.isEmpty()) {
+            fullRender.setCurrentRing(currentRing + 1);
+            fullRender.setStatus("New ring");
+            return;
+        }
+        if (!activeRegions.isEmpty()) {
+            // The last ring is in flight
+            fullRender.setStatus(activeRegions.size() + " regions in flight");
+            return;
+        }
+        fullRender.setStatus("Finished");
+        tag.setFullRender(null);
+        saveTag();
+        final Duration duration = Duration.ofMillis(System.currentTimeMillis() - fullRender.getStartTime());
+        final String durationString = duration.toDays() + "d"
+            + " " + duration.toHours() + "h"
+            + " " + duration.toMinutes() + "m"
+            + " " + duration.toSeconds() + "s";
+        plugin().getLogger().info("[" + name + "] full render finished in " + durationString);
+    }
+
+    /**
+     * Compute the chunks of a region for a full render: All chunks
+     * within the region, plus one for padding, because the renderer
+     * needs one additional block right outside the region border for
+     * shading.
+     *
+     * NOTE this appeared to work fine even if we did not select some
+     * of the outermost layers of chunks.  Up to two layers could be
+     * omitted.  We still do them all to be on the safe side.
+     */
+    private static List<Vec2i> getFullRenderChunks(Vec2i region) {
+        final List<Vec2i> result = new ArrayList<>();
+        final int ax = (region.x << 5);
+        final int az = (region.z << 5);
+        final int bx = ax + 31;
+        final int bz = az + 32;
+        for (int z = az; z <= bz; z += 1) {
+            for (int x = ax; x <= bx; x += 1) {
+                result.add(Vec2i.of(x, z));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Start loading the chunks of the next region in the queue while
+     * the regions in flight are rendering, so it does not have to
+     * wait on chunks once it is pulled.  Nothing is prefetched while
+     * any region in flight still waits on its chunks, or if it would
+     * exceed the configured number of held chunks.
+     */
+    private void prefetch(FullRenderTag fullRender, World world) {
+        final List<Vec2i> regionQueue = fullRender.getRegionQueue();
+        final Vec2i nextRegion = regionQueue.isEmpty() ? null : regionQueue.get(0);
+        if (fullRender.getPrefetchRegion() != null) {
+            if (fullRender.getPrefetchRegion().equals(nextRegion)) return;
+            // The queue changed
+            unholdPrefetch(fullRender);
+        }
+        if (nextRegion == null) return;
+        for (FullRenderRegion activeRegion : fullRender.getActiveRegions()) {
+            if (!activeRegion.isChunksLoaded()) return;
+        }
+        if (!isRegionGenerated(world, nextRegion)) return;
+        final List<Vec2i> chunks = getFullRenderChunks(nextRegion);
+        if (chunkTicketMap.size() + chunks.size() > plugin().getFullRenderMaxHeldChunks()) return;
+        for (Vec2i chunk : chunks) {
+            holdChunk(chunk, false);
+        }
+        fullRender.setPrefetchRegion(nextRegion);
+        fullRender.setPrefetchChunks(chunks);
+    }
+
+    private void unholdPrefetch(FullRenderTag fullRender) {
+        if (fullRender.getPrefetchChunks() != null) {
+            for (Vec2i chunk : fullRender.getPrefetchChunks()) {
+                unholdChunk(chunk);
+            }
         }
+        fullRender.setPrefetchRegion(null);
+        fullRender.setPrefetchChunks(null);
+    }
+
+    /**
+     * Check if the region file of a region exists.  If the region
+     * folder cannot be found, every region is assumed to exist and
+     * chunks are checked one by one as they are held.
+     */
+    private boolean isRegionGenerated(World world, Vec2i region) {
+        final File regionFolder = findRegionFolder(world);
+        if (regionFolder == null) return true;
+        return new File(regionFolder, "r." + region.x + "." + region.z + ".mca").exists();
     }
 
-    private boolean tickChunkRenderer(final long startTime) {
+    private static File findRegionFolder(World world) {
+        final File worldFolder = world.getWorldFolder();
+        final List<File> candidates = new ArrayList<>();
+        switch (world.getEnvironment()) {
+        case NETHER:
+            candidates.add(new File(worldFolder, "DIM-1/region"));
+            break;
+        case THE_END:
+            candidates.add(new File(worldFolder, "DIM1/region"));
+            break;
+        default: break;
+        }
+        candidates.add(new File(worldFolder, "region"));
+        candidates.add(new File(worldFolder, "dimensions/" + world.getKey().getNamespace() + "/" + world.getKey().getKey() + "/region"));
+        for (File candidate : candidates) {
+            if (candidate.isDirectory()) return candidate;
+        }
+        return null;
+    }
+
+    /**
+     * Make progress on one region in flight.
+     *
+     * @return true if the region is finished, false otherwise.
+     */
+    private boolean fullRenderRegion(FullRenderRegion activeRegion, FullRenderTag fullRender, World world, final long deadlineNanos) {
+        final Vec2i currentRegion = activeRegion.getRegion();
+        if (!activeRegion.isChunksHeld()) {
+            // After a restart or reload, chunks will no longer be
+            // held.
+            for (Vec2i chunkVector : activeRegion.getChunks()) {
+                holdChunk(chunkVector, false);
+            }
+            activeRegion.setChunksHeld(true);
+        }
+        // Make sure all chunks are loaded, or known to be missing.
+        // Missing chunks are rendered empty.
+        int unloadedChunkCount = 0;
+        for (Vec2i chunk : activeRegion.getChunks()) {
+            if (world.isChunkLoaded(chunk.x, chunk.z) || isChunkMissing(chunk)) continue;
+            unloadedChunkCount += 1;
+        }
+        if (unloadedChunkCount > 0) {
+            activeRegion.setStatus("Waiting on chunks");
+            return false;
+        }
+        activeRegion.setChunksLoaded(true);
+        int unloadedRegionCount = 0;
+        for (WorldRenderCache worldRenderCache : renderTypeMap.values()) {
+            final RegionFileCache regionFileCache = worldRenderCache.pollRegion(currentRegion);
+            if (regionFileCache.getState() != RegionFileCache.State.LOADED) {
+                unloadedRegionCount += 1;
+            }
+        }
+        if (unloadedRegionCount > 0) {
+            activeRegion.setStatus("Waiting on map regions");
+            return false;
+        }
+        // All chunks loaded!
+        final boolean renderFinished = plugin().isAsyncRender()
+            ? fullRenderAsync(activeRegion, fullRender, world, deadlineNanos)
+            : fullRenderSync(activeRegion, fullRender, world, deadlineNanos);
+        if (!renderFinished) return false;
+        unpinRegions(activeRegion);
+        for (MapImageRenderer renderer : activeRegion.getRenderers()) {
+            for (MapImageRenderer.Target target : renderer.getTargets()) {
+                final WorldRenderCache worldRenderCache = renderTypeMap.get(target.getRenderType());
+                if (worldRenderCache == null) continue;
+                worldRenderCache.getRegion(currentRegion).mergeFloors(target.getFloors(), 0, 0, 512, true);
+            }
+        }
+        // Save later
+        for (WorldRenderCache worldRenderCache : renderTypeMap.values()) {
+            final RegionFileCache regionFileCache = worldRenderCache.getRegion(currentRegion);
+            worldRenderCache.markDirty(regionFileCache);
+        }
+        return true;
+    }
+
+    /**
+     * Keep the regions of a full render loaded while its renderers
+     * write into them, even if this world is not ticked.
+     */
+    private void pinRegions(FullRenderRegion activeRegion) {
+        final List<RegionFileCache> pinned = new ArrayList<>();
+        for (WorldRenderCache worldRenderCache : renderTypeMap.values()) {
+            final RegionFileCache regionFileCache = worldRenderCache.getRegion(activeRegion.getRegion());
+            regionFileCache.pin();
+            pinned.add(regionFileCache);
+        }
+        activeRegion.setPinnedRegions(pinned);
+    }
+
+    private void unpinRegions(FullRenderRegion activeRegion) {
+        if (activeRegion.getPinnedRegions() == null) return;
+        for (RegionFileCache regionFileCache : activeRegion.getPinnedRegions()) {
+            regionFileCache.unpin();
+        }
+        activeRegion.setPinnedRegions(null);
+    }
+
+    /**
+     * Render a region in the main thread, straight from the world,
+     * within the time limit.
+     *
+     * @return true if the region is finished, false otherwise.
+     */
+    private boolean fullRenderSync(FullRenderRegion activeRegion, FullRenderTag fullRender, World world, final long deadlineNanos) {
+        final Vec2i currentRegion = activeRegion.getRegion();
+        // Make sure there is a renderer and start rendering
+        final List<MapImageRenderer> renderers;
+        if (activeRegion.getRenderers() == null) {
+            renderers = new ArrayList<>();
+            final int x = currentRegion.x << 9;
+            final int z = currentRegion.z << 9;
+            // One renderer for all render types
+            final MapImageRenderer renderer = new MapImageRenderer(world, x, z, 512, 512, fullRender.getWorldBorder());
+            for (WorldRenderCache worldRenderCache : renderTypeMap.values()) {
+                final RegionFileCache regionFileCache = worldRenderCache.getRegion(currentRegion);
+                renderer.addTarget(worldRenderCache.getRenderType(), regionFileCache.getImage(),
+                                   RegionFileCache.createRenderFloors(512, 512));
+            }
+            renderers.add(renderer);
+            activeRegion.setRenderers(renderers);
+            pinRegions(activeRegion);
+        } else {
+            renderers = activeRegion.getRenderers();
+        }
+        // Renderers are enabled, let's see if they are
+        // finished. If not, iterate a few times.
+        int notFinishedCount = 0;
+        for (MapImageRenderer renderer : renderers) {
+            if (!renderer.isFinished()) {
+                notFinishedCount += 1;
+            }
+        }
+        if (notFinishedCount > 0) {
+            for (MapImageRenderer renderer : renderers) {
+                if (renderer.isFinished()) {
+                    continue;
+                }
+                ChunkLoadListener.chunkLoadListener().setCallback(c -> {
+                        final Vec2i chunkVector = Vec2i.of(c);
+                        plugin().getLogger().warning("[ChunkLoad] WorldFileCache#fullRenderIter " + name + " Region"
+                                                     + " " + (renderer.getMinWorldX() >> 9)
+                                                     + "," + (renderer.getMinWorldZ() >> 9)
+                                                     + " Chunk " + chunkVector
+                                                     + " " + (activeRegion.getChunks().contains(chunkVector)
+                                                              ? "in region chunks"
+                                                              : "NOT in region chunks"));
+                    });
+                renderer.runUntil(deadlineNanos);
+                ChunkLoadListener.chunkLoadListener().setCallback(null);
+                if (System.nanoTime() >= deadlineNanos) {
+                    break;
+                }
+            }
+            activeRegion.setStatus("Rendering");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Capture snapshots of all region chunks within the time limit,
+     * and have a render thread render them straight into the region
+     * images.
+     *
+     * @return true if the region is finished, false otherwise.
+     */
+    private boolean fullRenderAsync(FullRenderRegion activeRegion, FullRenderTag fullRender, World world, final long deadlineNanos) {
+        final Vec2i currentRegion = activeRegion.getRegion();
+        if (activeRegion.getRenderers() == null) {
+            if (activeRegion.getSnapshots() == null) {
+                activeRegion.setSnapshots(new ChunkSnapshotBlockSource(world));
+            }
+            final ChunkSnapshotBlockSource snapshots = activeRegion.getSnapshots();
+            boolean allCaptured = true;
+            for (Vec2i chunk : activeRegion.getChunks()) {
+                if (snapshots.isCaptured(chunk.x, chunk.z) || isChunkMissing(chunk)) continue;
+                if (System.nanoTime() >= deadlineNanos) {
+                    allCaptured = false;
+                    break;
+                }
+                snapshots.capture(chunk.x, chunk.z);
+            }
+            if (!allCaptured) {
+                activeRegion.setStatus("Capturing chunks");
+                return false;
+            }
+            // All snapshots captured.  From here on, the source is
+            // owned by the render threads.
+            final List<MapImageRenderer> renderers = new ArrayList<>();
+            final int x = currentRegion.x << 9;
+            final int z = currentRegion.z << 9;
+            // One renderer for all render types
+            final MapImageRenderer renderer = new MapImageRenderer(snapshots, world.getMinHeight(), world.getMaxHeight(),
+                                                                   x, z, 512, 512,
+                                                                   fullRender.getWorldBorder());
+            for (WorldRenderCache worldRenderCache : renderTypeMap.values()) {
+                final RegionFileCache regionFileCache = worldRenderCache.getRegion(currentRegion);
+                renderer.addTarget(worldRenderCache.getRenderType(), regionFileCache.getImage(),
+                                   RegionFileCache.createRenderFloors(512, 512));
+            }
+            renderers.add(renderer);
+            pinRegions(activeRegion);
+            plugin().getWorlds().submitRenderer(renderer, "WorldFileCache#fullRenderAsync " + name + " " + currentRegion);
+            activeRegion.setRenderers(renderers);
+            activeRegion.setSnapshots(null);
+            activeRegion.setStatus("Rendering async");
+            return false;
+        }
+        for (MapImageRenderer renderer : activeRegion.getRenderers()) {
+            if (!renderer.isFinished()) {
+                activeRegion.setStatus("Rendering async");
+                return false;
+            }
+        }
+        // The renderers wrote straight into the region images
+        return true;
+    }
+
+    private boolean tickChunkRenderer(final long deadlineNanos) {
         if (chunkRenderTask != null) {
             if (!chunkRenderTask.isDone()) {
-                chunkRenderTask.tick(startTime);
+                chunkRenderTask.tick(deadlineNanos);
             }
             if (chunkRenderTask.isDone()) {
-                chunkRenderQueue.removeAll(chunkRenderTask.getChunksToRender());
-                if (persistent) {
-                    // This is most likekly just one region, as per
-                    // the loading strategy of the ChunkRenderTask.
-                    final Set<Vec2i> regions = new HashSet<>();
-                    for (Vec2i chunk : chunkRenderTask.getChunksToRender()) {
-                        final Vec2i regionVector = Vec2i.of(chunk.x >> 5, chunk.z >> 5);
-                        if (!regions.add(regionVector)) continue;
-                        for (WorldRenderCache render : renderTypeMap.values()) {
-                            RegionFileCache region = render.getRegion(regionVector);
-                            if (region != null && region.getState() == RegionFileCache.State.LOADED) {
-                                render.scheduleSave(region);
-                            }
-                        }
-                    }
-                }
                 chunkRenderTask = null;
             }
             return true;
         } else if (!chunkRenderQueue.isEmpty()) {
             chunkRenderTask = new ChunkRenderTask(this, this::onChunkDidRerender);
-            chunkRenderTask.init(List.copyOf(renderTypeMap.values()), chunkRenderQueue);
+            chunkRenderTask.initQueued(List.copyOf(renderTypeMap.values()),
+                                       chunkRenderQueue.pollRegion(viewers, plugin().getRerenderAgingMillis()));
             return true;
         } else {
             return false;
@@ -547,8 +795,8 @@ public final class WorldFileCache {
      * This will get called once per RenderType, thus once per
      * ChunkRenderCache!  Via ChunkRenderTask#chunkRemoveCallback.
      *
-     * We remove the chunk from the queue once the task is done, so
-     * this does nothing.
+     * The chunks left the queue when the task took them, so this does
+     * nothing.
      */
     private void onChunkDidRerender(Vec2i chunk) {
     }
@@ -565,12 +813,70 @@ public final class WorldFileCache {
         if (!getEffectiveWorldBorder().containsChunk(chunkX, chunkZ)) {
             return false;
         }
-        final Vec2i chunkVector = Vec2i.of(chunkX, chunkZ);
-        if (chunkRenderQueue.contains(chunkVector)) {
+        return chunkRenderQueue.add(chunkX, chunkZ);
+    }
+
+    /**
+     * Force a render of one block column in the future, along with
+     * the column north of it, whose shading depends on this one.
+     * Only the RenderTypes which may show a change at this height
+     * are rendered, see RegionFileCache#isVisible.
+     *
+     * @return true if anything was scheduled
+     */
+    public boolean requestColumnRerender(int blockX, int y, int blockZ) {
+        if (isFullRenderScheduled()) return false;
+        final Vec2i regionVector = Vec2i.of(blockX >> 9, blockZ >> 9);
+        int renderTypes = 0;
+        for (WorldRenderCache render : renderTypeMap.values()) {
+            final RegionFileCache region = render.getRegion(regionVector);
+            if (region == null || region.getState() != RegionFileCache.State.LOADED || region.isVisible(blockX, y, blockZ)) {
+                renderTypes |= ChunkRenderQueue.renderTypeBit(render.getRenderType());
+            }
+        }
+        if (renderTypes == 0) {
+            hiddenBlockChanges += 1;
             return false;
         }
-        chunkRenderQueue.add(chunkVector);
-        return true;
+        final WorldBorderCache border = getEffectiveWorldBorder();
+        boolean result = false;
+        if (border.containsChunk(blockX >> 4, blockZ >> 4)) {
+            result |= queueColumn(blockX, blockZ, renderTypes);
+        }
+        if (border.containsChunk(blockX >> 4, (blockZ - 1) >> 4)) {
+            result |= queueColumn(blockX, blockZ - 1, renderTypes);
+        }
+        return result;
+    }
+
+    /**
+     * Queue a column, or hold it back if its chunk is hot.
+     */
+    private boolean queueColumn(int blockX, int blockZ, int renderTypes) {
+        final int chunkX = blockX >> 4;
+        final int chunkZ = blockZ >> 4;
+        if (hotChunkQueue.contains(chunkX, chunkZ)) {
+            hotChunkTracker.onDeferred();
+            return hotChunkQueue.addColumn(blockX, blockZ, renderTypes);
+        }
+        if (!chunkRenderQueue.contains(chunkX, chunkZ) && hotChunkTracker.onQueued(chunkX, chunkZ)) {
+            hotChunkTracker.onDeferred();
+            return hotChunkQueue.addColumn(blockX, blockZ, renderTypes);
+        }
+        return chunkRenderQueue.addColumn(blockX, blockZ, renderTypes);
+    }
+
+    /**
+     * Release the held back changes of hot chunks into the render
+     * queue every HotChunks.CadenceMillis.  Called by Worlds every
+     * tick.
+     */
+    protected void tickHotChunks() {
+        final long now = System.currentTimeMillis();
+        if (now - lastHotChunkRelease < plugin().getHotChunkCadenceMillis()) return;
+        lastHotChunkRelease = now;
+        hotChunkQueue.drainInto(chunkRenderQueue);
+        hotChunkTracker.cleanUp();
     }
 
     public boolean requestRegionRerender(int regionX, int regionZ) {
@@ -589,9 +895,10 @@ public final class WorldFileCache {
     }
 
     /**
-     * Regular cleaning up of unused regions.
+     * Regular cleaning up of unused regions.  Called by the
+     * RenderScheduler every tick.
      */
-    private void cleanUp() {
+    protected void cleanUp() {
         for (WorldRenderCache it : renderTypeMap.values()) {
             it.cleanUp();
         }
@@ -610,6 +917,7 @@ public final class WorldFileCache {
         fullRender.setWorldBorder(computeWorldBorder());
         tag.setFullRender(fullRender);
         chunkRenderQueue.clear();
+        hotChunkQueue.clear();
         saveTag();
         return fullRender;
     }
@@ -618,9 +926,136 @@ public final class WorldFileCache {
         final FullRenderTag fullRender = tag.getFullRender();
         if (fullRender == null) return null;
         tag.setFullRender(null);
-        for (Vec2i chunk : fullRender.getCurrentChunks()) {
-            unholdChunk(chunk);
+        for (FullRenderRegion activeRegion : fullRender.getActiveRegions()) {
+            for (Vec2i chunk : activeRegion.getChunks()) {
+                unholdChunk(chunk);
+            }
+            unpinRegions(activeRegion);
         }
+        unholdPrefetch(fullRender);
         return fullRender;
     }
+
+    /**
+     * Render the whole world from its region files in the background,
+     * see OfflineRenderer, then import the images.  The world is saved
+     * first so the region files are current.
+     *
+     * The images are written into a staging folder, never over the
+     * live ones, because the plugin keeps running: it may hold a
+     * region in memory, journal into it, or keep it in the tile
+     * store.  The import on the main thread only replaces the image
+     * of a region which is not loaded and has not been saved since
+     * the render started.  It deletes the journal and tile of that
+     * region, as they would shadow the new image.  Any other region
+     * is rerendered instead.
+     *
+     * @return true if the render was started, false if one is already
+     *   running or the region folder cannot be found
+     */
+    public boolean startOfflineRender(int threads) {
+        if (!persistent) {
+            throw new IllegalStateException("!persistent: " + name);
+        }
+        if (offlineRendering) return false;
+        final World world = getWorld();
+        if (world == null) return false;
+        final File regionFolder = findRegionFolder(world);
+        if (regionFolder == null) return false;
+        world.save();
+        final File stagingFolder = new File(magicMapFolder, "offline");
+        deleteStagingFolder(stagingFolder);
+        final OfflineRenderer renderer = new OfflineRenderer(regionFolder, stagingFolder,
+                                                             new ArrayList<>(renderTypeMap.keySet()),
+                                                             world.getMinHeight(), world.getMaxHeight(),
+                                                             plugin().getLogger());
+        final long startTime = System.currentTimeMillis();
+        offlineRendering = true;
+        Bukkit.getScheduler().runTaskAsynchronously(plugin(), () -> {
+                final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+                boolean success = false;
+                try {
+                    renderer.renderAll(executor);
+                    success = true;
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                } catch (RuntimeException re) {
+                    plugin().getLogger().log(Level.SEVERE, "[Offline] " + name, re);
+                } finally {
+                    executor.shutdown();
+                }
+                final boolean doImport = success;
+                if (!plugin().isEnabled()) return;
+                Bukkit.getScheduler().runTask(plugin(), () -> {
+                        offlineRendering = false;
+                        if (doImport) importOfflineRender(stagingFolder, startTime);
+                        deleteStagingFolder(stagingFolder);
+                    });
+            });
+        return true;
+    }
+
+    /**
+     * Move the staged images into place, see startOfflineRender.
+     * Called on the main thread.
+     */
+    private void importOfflineRender(File stagingFolder, long startTime) {
+        if (tag == null) {
+            plugin().getLogger().warning("[Offline] World was disabled, not importing: " + name);
+            return;
+        }
+        int imported = 0;
+        final Set<Vec2i> rerender = new HashSet<>();
+        for (WorldRenderCache render : renderTypeMap.values()) {
+            final File[] files = new File(stagingFolder, render.getRenderType().name().toLowerCase()).listFiles();
+            if (files == null) continue;
+            for (File file : files) {
+                final String[] parts = file.getName().split("\\.");
+                if (parts.length != 4 || !parts[0].equals("r") || !parts[3].equals("png")) continue;
+                final Vec2i region;
+                try {
+                    region = Vec2i.of(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+                } catch (NumberFormatException nfe) {
+                    continue;
+                }
+                final File imageFile = new File(render.getMapFolder(), file.getName());
+                final File journalFile = new File(render.getMapFolder(), "r." + region.x + "." + region.z + ".journal");
+                if (render.getRegion(region) != null
+                    || imageFile.lastModified() >= startTime
+                    || journalFile.lastModified() >= startTime) {
+                    rerender.add(region);
+                    continue;
+                }
+                try {
+                    Files.move(file.toPath(), imageFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    journalFile.delete();
+                    if (render.getTileStore() != null) {
+                        render.getTileStore().drop(region);
+                    }
+                    imported += 1;
+                } catch (IOException ioe) {
+                    plugin().getLogger().log(Level.SEVERE, "[Offline] Import " + file, ioe);
+                    rerender.add(region);
+                }
+            }
+        }
+        for (Vec2i region : rerender) {
+            requestRegionRerender(region.x, region.z);
+        }
+        plugin().getLogger().info("[Offline] " + name + ": Imported " + imported + " images, "
+                                  + rerender.size() + " regions left to rerender");
+    }
+
+    private static void deleteStagingFolder(File stagingFolder) {
+        final File[] folders = stagingFolder.listFiles();
+        if (folders == null) return;
+        for (File folder : folders) {
+            final File[] files = folder.listFiles();
+            if (files != null) {
+                for (File file : files) file.delete();
+            }
+            folder.delete();
+        }
+        stagingFolder.delete();
+    }
 }
@@ -2,16 +2,16 @@ package com.cavetale.magicmap.file;
 
 import com.cavetale.core.struct.Vec2i;
 import com.cavetale.magicmap.RenderType;
-import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.logging.Level;
 import lombok.Data;
 import lombok.NonNull;
-import org.bukkit.Bukkit;
 import static com.cavetale.magicmap.MagicMapPlugin.plugin;
 
 /**
@@ -29,16 +29,11 @@ public final class WorldRenderCache {
     // Runtime
     private final Map<Vec2i, RegionFileCache> regionMap = new HashMap<>();
     private final List<Vec2i> unloadRegions = new ArrayList<>();
-    // Async thread
-    private Vec2i currentAsyncRegion;
-    // Usage:
-    // - Set state of regionFileCache to LOADING or SAVING
-    // - Add region vector to asyncQueue
-    // - Call checkAsyncQueue()
-    private final List<Vec2i> asyncQueue = new ArrayList<>();
     // The Chunk Render Queue is only used in non-persistent worlds.
-    private final List<Vec2i> chunkRenderQueue = new ArrayList<>();
+    private final ChunkRenderQueue chunkRenderQueue = new ChunkRenderQueue();
     private ChunkRenderTask chunkRenderTask = null;
+    // Optional, see openTileStore
+    private TileStore tileStore;
 
     public WorldRenderCache(final WorldFileCache worldFileCache, final RenderType renderType, final File magicMapFolder) {
         this.worldFileCache = worldFileCache;
@@ -57,24 +52,164 @@ public final class WorldRenderCache {
         }
     }
 
+    /**
+     * Keep the region images in a TileStore instead of PNG files.
+     * Only the world being rendered does this, never the web server.
+     */
+    public void openTileStore() {
+        if (!persistent || tileStore != null) return;
+        final TileStore store = new TileStore(mapFolder);
+        try {
+            store.open();
+        } catch (IOException ioe) {
+            plugin().getLogger().log(Level.SEVERE, "Open tile store " + worldFileCache.getName() + "/" + renderType, ioe);
+            return;
+        }
+        tileStore = store;
+    }
+
     public void disable() {
+        final RegionIoPool pool = plugin().getWorlds().getRegionIoPool();
+        if (pool != null) {
+            // Queued saves must finish before the dirty regions are
+            // flushed and the tile store is closed.
+            pool.finishJobs(this);
+        }
+        flushAllDirty();
+        if (tileStore != null) {
+            try {
+                tileStore.close();
+            } catch (IOException ioe) {
+                plugin().getLogger().log(Level.SEVERE, "Close tile store " + worldFileCache.getName() + "/" + renderType, ioe);
+            }
+            tileStore = null;
+        }
         regionMap.clear();
         unloadRegions.clear();
-        currentAsyncRegion = null;
-        asyncQueue.clear();
+    }
+
+    /**
+     * Save all dirty regions right away, in this thread, ignoring
+     * the write budget.  Journals are compacted on the way, so the
+     * web server sees the final images.  Called once the RegionIoPool
+     * has no more jobs of this cache.
+     */
+    private void flushAllDirty() {
+        for (RegionFileCache it : regionMap.values()) {
+            if (it.isBusy() || it.getState() != RegionFileCache.State.LOADED) continue;
+            if (!it.isDirty() && it.getJournalRecords() == 0) continue;
+            it.prepareSave(true);
+            // Failures are logged, there is no later to retry in
+            it.save();
+        }
+    }
+
+    /**
+     * Remember that a region was rendered into.  Dirty regions are
+     * saved once they have been dirty for the write behind interval,
+     * when they are about to be unloaded, or when this cache is
+     * disabled.  This way, a region which keeps changing is saved
+     * once per interval instead of after every change.
+     */
+    public void markDirty(RegionFileCache regionFileCache) {
+        if (!persistent) return;
+        regionFileCache.getDirtyChunks().set(0, 1024);
+        setDirty(regionFileCache);
+    }
+
+    /**
+     * Remember that one chunk of a region was rendered into.  See
+     * markDirty.
+     */
+    public void markChunkDirty(RegionFileCache regionFileCache, int chunkX, int chunkZ) {
+        if (!persistent) return;
+        regionFileCache.getDirtyChunks().set(RegionFileCache.chunkIndex(chunkX, chunkZ));
+        setDirty(regionFileCache);
+    }
+
+    private static void setDirty(RegionFileCache regionFileCache) {
+        if (regionFileCache.isDirty()) return;
+        regionFileCache.setDirty(true);
+        regionFileCache.setDirtySince(System.currentTimeMillis());
+    }
+
+    public int countJournalRecords() {
+        int result = 0;
+        for (RegionFileCache it : regionMap.values()) {
+            result += it.getJournalRecords();
+        }
+        return result;
+    }
+
+    public int countDirtyRegions() {
+        int result = 0;
+        for (RegionFileCache it : regionMap.values()) {
+            if (it.isDirty()) result += 1;
+        }
+        return result;
+    }
+
+    /**
+     * Count the regions owned by a RegionIoPool job.
+     */
+    public int countBusyRegions() {
+        int result = 0;
+        for (RegionFileCache it : regionMap.values()) {
+            if (it.isBusy()) result += 1;
+        }
+        return result;
     }
 
     public RegionFileCache getRegion(@NonNull Vec2i vec) {
         return regionMap.get(vec);
     }
 
+    /**
+     * Get a region for one use, loading it if necessary, and count
+     * it as a RegionCache hit if it was loaded already.
+     */
     public RegionFileCache loadRegion(@NonNull Vec2i vec) {
-        final RegionFileCache result = regionMap.computeIfAbsent(vec, v -> new RegionFileCache(this, vec).enable());
+        if (regionMap.containsKey(vec)) {
+            plugin().getWorlds().getRegionCache().onHit();
+        }
+        return pollRegion(vec);
+    }
+
+    /**
+     * Get a region like loadRegion, but without counting a hit.  For
+     * callers which ask every tick, until it is loaded or to keep it
+     * loaded.  Creating the region always counts as a miss, once.
+     */
+    public RegionFileCache pollRegion(@NonNull Vec2i vec) {
+        RegionFileCache result = regionMap.get(vec);
+        if (result == null) {
+            plugin().getWorlds().getRegionCache().onMiss();
+            result = new RegionFileCache(this, vec).enable();
+            regionMap.put(vec, result);
+        }
         result.resetNoTick();
         return result;
     }
 
-    protected void scheduleSave(RegionFileCache regionFileCache) {
+    /**
+     * Unload a region right away.  The RegionCache calls this to stay
+     * within its budget.
+     */
+    protected void unloadRegion(RegionFileCache regionFileCache) {
+        if (regionMap.remove(regionFileCache.getRegion()) != regionFileCache) {
+            throw new IllegalStateException("world:" + worldFileCache.getName()
+                                            + " render:" + renderType
+                                            + " region:" + regionFileCache.getRegion()
+                                            + " not loaded");
+        }
+        regionFileCache.disable();
+    }
+
+    /**
+     * @param compact true to write the whole image, compacting the
+     *   journal, false to let the region decide
+     */
+    protected void scheduleSave(RegionFileCache regionFileCache, boolean compact) {
         if (regionFileCache.getState() != RegionFileCache.State.LOADED) {
             throw new IllegalStateException("world:" + worldFileCache.getName()
                                             + " render:" + renderType
@@ -82,8 +217,8 @@ public final class WorldRenderCache {
                                             + " state:" + regionFileCache.getState());
         }
         regionFileCache.setState(RegionFileCache.State.SAVING);
-        asyncQueue.add(regionFileCache.getRegion());
-        checkAsyncQueue();
+        regionFileCache.prepareSave(compact);
+        submitIo(regionFileCache);
     }
 
     protected void scheduleLoad(RegionFileCache regionFileCache) {
@@ -94,8 +229,7 @@ public final class WorldRenderCache {
                                             + " state:" + regionFileCache.getState());
         }
         regionFileCache.setState(RegionFileCache.State.LOADING);
-        asyncQueue.add(regionFileCache.getRegion());
-        checkAsyncQueue();
+        submitIo(regionFileCache);
     }
 
     public void cleanUp() {
@@ -112,9 +246,8 @@ public final class WorldRenderCache {
 
     /**
      * In the main thread, we check on each region file and see if it
-     * needs loading or unloading.  Loading is done in an off-thread,
-     * one region at a time.  The asyncQueue remembers which regions
-     * need saving or loading.
+     * needs loading or unloading.  Loading and saving is done by the
+     * RegionIoPool.
      */
     private void cleanUpIter(RegionFileCache regionFileCache) {
         switch (regionFileCache.getState()) {
@@ -129,8 +262,32 @@ public final class WorldRenderCache {
         case OUT_OF_BOUNDS:
         case LOADED: {
             regionFileCache.increaseNoTick();
-            if (regionFileCache.getNoTicks() > NO_TICK_THRESHOLD) {
-                unloadRegions.add(regionFileCache.getRegion());
+            final boolean hasWriteBudget = plugin().getWorlds().getRegionIoPool().hasWriteBudget();
+            if (regionFileCache.isPinned()) {
+                // A renderer is writing into it
+                regionFileCache.resetNoTick();
+            } else if (regionFileCache.isSaveBackingOff()) {
+                // The last save failed.  Stay loaded so nothing is
+                // lost, and try again later.
+            } else if (regionFileCache.getNoTicks() > NO_TICK_THRESHOLD) {
+                if (regionFileCache.isDirty() || regionFileCache.getJournalRecords() > 0) {
+                    // Save and compact before unloading, regardless
+                    // of the write budget, so the web server sees
+                    // the final image.  Unloaded next time.
+                    scheduleSave(regionFileCache, true);
+                } else {
+                    unloadRegions.add(regionFileCache.getRegion());
+                }
+            } else if (regionFileCache.isDirty()) {
+                if (System.currentTimeMillis() - regionFileCache.getDirtySince() >= plugin().getWriteBehindIntervalMillis()
+                    && hasWriteBudget) {
+                    scheduleSave(regionFileCache, false);
+                }
+            } else if (regionFileCache.getJournalRecords() >= plugin().getJournalCompactRecords()
+                       && regionFileCache.getJournalRecords() > 0
+                       && hasWriteBudget) {
+                // Background compaction
+                scheduleSave(regionFileCache, true);
             }
             break;
         }
@@ -142,56 +299,56 @@ public final class WorldRenderCache {
     }
 
     /**
-     * Called occasionally to make sure we are either currently doing
-     * a region in an async thread, scheduling a new region from the
-     * queue, or there is nothing to do.
+     * Load or save the region in the RegionIoPool, depending on its
+     * state.  The region is LOADED once done.
      */
-    private void checkAsyncQueue() {
-        if (currentAsyncRegion != null) return;
-        if (asyncQueue.isEmpty()) return;
-        currentAsyncRegion = asyncQueue.remove(0);
-        final RegionFileCache regionFileCache = regionMap.get(currentAsyncRegion);
-        if (regionFileCache == null) {
-            currentAsyncRegion = null;
-            return;
-        }
-        if (regionFileCache.isBusy()) return;
-        regionFileCache.setBusy(true);
-        Bukkit.getScheduler().runTaskAsynchronously(plugin(), () -> {
+    private void submitIo(RegionFileCache regionFileCache) {
+        final RegionIoPool pool = plugin().getWorlds().getRegionIoPool();
+        // Saves reserve their estimated size until they know the
+        // actual size.
+        final long reservedBytes = regionFileCache.getState() == RegionFileCache.State.SAVING
+            ? regionFileCache.estimateSaveBytes()
+            : 0L;
+        pool.reserveWrite(reservedBytes);
+        pool.submit(regionFileCache, () -> {
                 switch (regionFileCache.getState()) {
                 case LOADING:
                     regionFileCache.load();
                     break;
                 case SAVING:
-                    regionFileCache.save();
+                    regionFileCache.setSaved(regionFileCache.save());
                     break;
                 default:
                     plugin().getLogger().severe("[" + worldFileCache.getName() + "/" + renderType + "] [Async] " + regionFileCache.getRegion()
                                                 + " has unexpected state: " + regionFileCache.getState());
                     break;
                 }
-                Bukkit.getScheduler().runTask(plugin(), () -> {
-                        regionFileCache.setBusy(false);
-                        if (!regionFileCache.getRegion().equals(currentAsyncRegion)) {
-                            plugin().getLogger().severe("[" + worldFileCache.getName() + "/" + renderType + "] current async region changed"
-                                                        + " from " + regionFileCache.getRegion()
-                                                        + " to " + currentAsyncRegion);
-                        } else {
-                            currentAsyncRegion = null;
-                        }
-                        regionFileCache.setState(RegionFileCache.State.LOADED);
-                        checkAsyncQueue();
-                    });
+            }, () -> {
+                if (regionFileCache.getImage() == null) {
+                    // Loading threw
+                    regionFileCache.makeEmptyImage();
+                }
+                if (reservedBytes > 0L) {
+                    pool.chargeWrite(regionFileCache.getSavedBytes(), reservedBytes);
+                }
+                if (regionFileCache.getState() == RegionFileCache.State.SAVING) {
+                    if (regionFileCache.isSaved()) {
+                        regionFileCache.resetSaveFailures();
+                    } else {
+                        regionFileCache.restoreFailedSave();
+                    }
+                }
+                regionFileCache.setState(RegionFileCache.State.LOADED);
             });
     }
 
     /**
      * Called by WorldFileCache whenever there is no full render happening.
      */
-    protected boolean tickChunkRenderer(final long startTime) {
+    protected boolean tickChunkRenderer(final long deadlineNanos) {
         if (chunkRenderTask != null) {
             if (!chunkRenderTask.isDone()) {
-                chunkRenderTask.tick(startTime);
+                chunkRenderTask.tick(deadlineNanos);
             }
             if (chunkRenderTask.isDone()) {
                 chunkRenderTask = null;
@@ -199,7 +356,8 @@ public final class WorldRenderCache {
             return true;
         } else if (!chunkRenderQueue.isEmpty()) {
             chunkRenderTask = new ChunkRenderTask(worldFileCache, (Vec2i finishedChunk) -> chunkRenderQueue.remove(finishedChunk));
-            chunkRenderTask.init(List.of(this), chunkRenderQueue);
+            chunkRenderTask.init(List.of(this),
+                                 chunkRenderQueue.peekRegion(worldFileCache.getViewers(), plugin().getRerenderAgingMillis()));
             return true;
         } else {
             return false;
@@ -225,12 +383,7 @@ public final class WorldRenderCache {
         // if (region.isChunkRendered(chunkX, chunkZ)) {
         //     return false;
         // }
-        final Vec2i chunkVector = Vec2i.of(chunkX, chunkZ);
-        if (chunkRenderQueue.contains(chunkVector)) {
-            return false;
-        }
-        chunkRenderQueue.add(chunkVector);
-        return true;
+        return chunkRenderQueue.add(chunkX, chunkZ);
     }
 
     public void keepAlive(int centerX, int centerZ, int radius) {
@@ -245,7 +398,7 @@ public final class WorldRenderCache {
         final int maxRegionZ = maxMapZ >> 9;
         for (int rz = minRegionZ; rz <= maxRegionZ; rz += 1) {
             for (int rx = minRegionX; rx <= maxRegionX; rx += 1) {
-                RegionFileCache rfc = loadRegion(Vec2i.of(rx, rz));
+                pollRegion(Vec2i.of(rx, rz));
             }
         }
     }
@@ -275,7 +428,7 @@ public final class WorldRenderCache {
             final int maxChunkZ = maxMapZ >> 4;
             for (int cz = minChunkZ; cz <= maxChunkZ; cz += 1) {
                 for (int cx = minChunkX; cx <= maxChunkX; cx += 1) {
-                    final RegionFileCache region = loadRegion(Vec2i.of(cx >> 5, cz >> 5));
+                    final RegionFileCache region = pollRegion(Vec2i.of(cx >> 5, cz >> 5));
                     if (!region.isChunkRendered(cx, cz)) {
                         result = CopyResult.PARTIAL;
                         requestChunkRender(cx, cz);
@@ -288,7 +441,7 @@ public final class WorldRenderCache {
         final int minRegionZ = minMapZ >> 9;
         final int maxRegionX = maxMapX >> 9;
         final int maxRegionZ = maxMapZ >> 9;
-        final Graphics2D gfx = image.createGraphics();
+        final IntImage dst = IntImage.of(image);
         for (int rz = minRegionZ; rz <= maxRegionZ; rz += 1) {
             for (int rx = minRegionX; rx <= maxRegionX; rx += 1) {
                 RegionFileCache rfc = loadRegion(Vec2i.of(rx, rz));
@@ -314,15 +467,11 @@ public final class WorldRenderCache {
                 // Inner image coordinates [0..width] [0..height]
                 final int minDstX = minClipX - minMapX;
                 final int minDstZ = minClipZ - minMapZ;
-                final int maxDstX = maxClipX - minMapX;
-                final int maxDstZ = maxClipZ - minMapZ;
-                gfx.drawImage(rfc.getImage(),
-                              minDstX, minDstZ, maxDstX + 1, maxDstZ + 1,
-                              minSrcX, minSrcZ, maxSrcX + 1, maxSrcZ + 1,
-                              null);
+                rfc.getImage().copyInto(dst,
+                                        minSrcX, minSrcZ, minDstX, minDstZ,
+                                        maxSrcX - minSrcX + 1, maxSrcZ - minSrcZ + 1);
             }
         }
-        gfx.dispose();
         return result;
     }
 }
@@ -1,11 +1,24 @@
 package com.cavetale.magicmap.file;
 
+import com.cavetale.core.struct.Vec2i;
 import com.cavetale.magicmap.MagicMapPlugin;
+import com.cavetale.magicmap.Rendered;
+import com.cavetale.magicmap.Session;
+import com.cavetale.magicmap.webserver.WebserverManager;
+import com.destroystokyo.paper.event.server.ServerTickEndEvent;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import lombok.Getter;
 import org.bukkit.Bukkit;
 import org.bukkit.World;
+import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.Listener;
 import org.bukkit.event.world.WorldLoadEvent;
@@ -16,8 +29,30 @@ import org.bukkit.event.world.WorldUnloadEvent;
  */
 public final class Worlds implements Listener {
     private final Map<String, WorldFileCache> worldMap = new HashMap<>();
+    /** Render threads for renderers reading from chunk snapshots. */
+    @Getter private ExecutorService renderExecutor;
+    /** I/O threads loading and saving region files. */
+    @Getter private RegionIoPool regionIoPool;
+    /** Memory budget of the loaded regions of all worlds. */
+    @Getter private final RegionCache regionCache = new RegionCache();
+    @Getter private final RenderScheduler renderScheduler = new RenderScheduler();
 
     public void enableWorldServer() {
+        final int configThreads = MagicMapPlugin.getInstance().getConfig().getInt("RenderThreads");
+        final int renderThreads = configThreads > 0
+            ? configThreads
+            : Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        final AtomicInteger threadCounter = new AtomicInteger();
+        renderExecutor = Executors.newFixedThreadPool(renderThreads, runnable -> {
+                final Thread thread = new Thread(runnable, "MagicMap Render #" + threadCounter.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            });
+        MagicMapPlugin.getInstance().getLogger().info("Render threads: " + renderThreads);
+        final int ioThreads = Math.max(1, MagicMapPlugin.getInstance().getConfig().getInt("IoThreads"));
+        regionIoPool = new RegionIoPool(ioThreads);
+        MagicMapPlugin.getInstance().getLogger().info("I/O threads: " + ioThreads);
         Bukkit.getScheduler().runTaskTimer(MagicMapPlugin.getInstance(), this::tick, 1L, 1L);
         Bukkit.getPluginManager().registerEvents(this, MagicMapPlugin.getInstance());
         enableAllWorlds();
@@ -25,9 +60,18 @@ public final class Worlds implements Listener {
 
     public void disableWorldServer() {
         disableAllWorlds();
+        if (renderExecutor != null) {
+            renderExecutor.shutdownNow();
+            renderExecutor = null;
+        }
+        if (regionIoPool != null) {
+            regionIoPool.shutdown();
+            regionIoPool = null;
+        }
     }
 
     public void enableAllWorlds() {
+        renderScheduler.loadConfig();
         for (World world : Bukkit.getWorlds()) {
             enableWorld(world);
         }
@@ -40,10 +84,60 @@ public final class Worlds implements Listener {
         worldMap.clear();
     }
 
+    /**
+     * Run a renderer reading from chunk snapshots in a render thread.
+     * The caller polls MapImageRenderer#isFinished in the main
+     * thread.
+     */
+    public void submitRenderer(MapImageRenderer renderer, String description) {
+        try {
+            renderExecutor.execute(() -> {
+                    try {
+                        renderer.run();
+                    } catch (Exception e) {
+                        MagicMapPlugin.getInstance().getLogger().log(Level.SEVERE, "[Render] " + description, e);
+                    } finally {
+                        // Even an Error must not leave the main
+                        // thread waiting forever.
+                        renderer.abort();
+                    }
+                });
+        } catch (RejectedExecutionException ree) {
+            // We are shutting down
+            renderer.abort();
+        }
+    }
+
     private void tick() {
-        final long startTime = System.currentTimeMillis();
+        regionIoPool.tick();
+        updateViewers();
+        for (WorldFileCache it : worldMap.values()) {
+            it.tickHotChunks();
+        }
+        renderScheduler.tick(worldMap.values());
+        regionCache.tick(worldMap.values());
+    }
+
+    /**
+     * Tell each world where its map holders and web viewers are
+     * looking, so the chunk rerenders closest to them go first.
+     */
+    private void updateViewers() {
+        final Map<String, List<Vec2i>> viewers = new HashMap<>();
+        for (Session session : MagicMapPlugin.getInstance().getSessions().values()) {
+            final Rendered rendered = session.getLastRender();
+            if (rendered == null) continue;
+            final Player player = session.getPlayer();
+            if (player == null || !player.getWorld().getName().equals(rendered.getWorldName())) continue;
+            viewers.computeIfAbsent(rendered.getWorldName(), n -> new ArrayList<>())
+                .add(Vec2i.of(rendered.getMapArea().getCenterX(), rendered.getMapArea().getCenterZ()));
+        }
+        final WebserverManager webserverManager = MagicMapPlugin.getInstance().getWebserverManager();
+        if (webserverManager != null && webserverManager.getContentDelivery() != null) {
+            webserverManager.getContentDelivery().collectViewers(viewers);
+        }
         for (WorldFileCache it : worldMap.values()) {
-            it.tick(startTime);
+            it.setViewers(viewers.getOrDefault(it.getName(), List.of()));
         }
     }
 
@@ -63,6 +157,12 @@ public final class Worlds implements Listener {
         if (old != null) {
             old.disableWorld();
         }
+        renderScheduler.remove(world.getName());
+    }
+
+    @EventHandler
+    private void onServerTickEnd(ServerTickEndEvent event) {
+        renderScheduler.onTickEnd(event.getTickDuration());
     }
 
     @EventHandler
@@ -7,6 +7,7 @@ import com.cavetale.home.HomePlugin;
 import com.cavetale.home.Subclaim;
 import com.cavetale.magicmap.ColorIndex;
 import com.cavetale.magicmap.event.MagicMapPostRenderEvent;
+import com.cavetale.magicmap.file.IntImage;
 import lombok.RequiredArgsConstructor;
 import org.bukkit.Bukkit;
 import org.bukkit.event.EventHandler;
@@ -43,30 +44,31 @@ public final class MagicMapHome implements Listener {
     static void drawRect(MagicMapPostRenderEvent event, Area claimArea, ColorIndex color, String label) {
         final Vec2i min = event.clampMap(event.worldToMap(claimArea.ax, claimArea.ay));
         final Vec2i max = event.clampMap(event.worldToMap(claimArea.bx, claimArea.by));
+        final IntImage pixels = event.getPixels();
         for (int x = min.x; x <= max.x; x += 1) {
-            drawDotted(event, x, min.z, color);
-            drawDotted(event, x, max.z, color);
+            drawDotted(pixels, x, min.z, color);
+            drawDotted(pixels, x, max.z, color);
         }
         for (int z = min.z; z <= max.z; z += 1) {
-            drawDotted(event, min.x, z, color);
-            drawDotted(event, max.x, z, color);
+            drawDotted(pixels, min.x, z, color);
+            drawDotted(pixels, max.x, z, color);
         }
         if (label != null) {
             plugin().getTinyFont()
                 .print(label, min.x + 1, min.z + 1,
                        (x, y) -> {
                            if (x <= min.x || x >= max.x || y <= min.z || y >= max.z) return;
-                           event.getImage().setRGB(x, y, ColorIndex.WHITE.brightRgb);
+                           pixels.set(x, y, ColorIndex.WHITE.brightRgb);
                        },
                        (x, y) -> {
                            if (x <= min.x || x >= max.x || y <= min.z || y >= max.z) return;
-                           event.getImage().setRGB(x, y, color.darkRgb);
+                           pixels.set(x, y, color.darkRgb);
                        });
         }
     }
 
-    static void drawDotted(MagicMapPostRenderEvent event, int x, int y, ColorIndex color) {
+    static void drawDotted(IntImage pixels, int x, int y, ColorIndex color) {
         final boolean b = (x & 1) == (y & 1);
-        event.getImage().setRGB(x, y, b ? color.brightRgb : color.normalRgb);
+        pixels.set(x, y, b ? color.brightRgb : color.normalRgb);
     }
 }
@@ -8,10 +8,13 @@ import com.cavetale.core.connect.ServerCategory;
 import com.cavetale.core.connect.ServerGroup;
 import com.cavetale.core.perm.Perm;
 import com.cavetale.core.playercache.PlayerCache;
+import com.cavetale.core.struct.Vec2i;
 import com.cavetale.home.Claim;
 import com.cavetale.home.HomePlugin;
 import com.cavetale.magicmap.PlayerLocationTag;
 import com.cavetale.magicmap.RenderType;
+import com.cavetale.magicmap.file.PaletteImage;
+import com.cavetale.magicmap.file.RegionFileCache;
 import com.cavetale.magicmap.file.WorldFileCache;
 import com.cavetale.magicmap.file.WorldRenderCache;
 import com.cavetale.webserver.content.ContentDelivery;
@@ -39,13 +42,17 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.UUID;
 import java.util.logging.Level;
 import lombok.Getter;
+import lombok.Value;
 import org.bukkit.World.Environment;
 import static com.cavetale.core.util.CamelCase.toCamelCase;
 import static com.cavetale.magicmap.MagicMapPlugin.plugin;
@@ -57,7 +64,24 @@ public final class MagicMapContentDelivery implements ContentDelivery {
     private final String name = "MagicMap";
     private final List<String> paths = List.of("map");
     private final Map<String, WorldFileCache> worldMap = new HashMap<>();
+    private final Set<MagicMapContentDeliverySessionData> viewerSessions = Collections.newSetFromMap(new IdentityHashMap<>());
     private final StaticContentProvider emptyRegionPngProvider = new StaticContentProvider(HttpContentType.IMAGE_PNG, new BufferedImage(512, 512, BufferedImage.TYPE_INT_ARGB), "png");
+    // Recently requested regions with a journal, by journal file
+    private final Map<File, JournaledRegionPng> journaledRegionPngs = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<File, JournaledRegionPng> eldest) {
+                return size() > MAX_JOURNALED_REGION_PNGS;
+            }
+        };
+    private static final int MAX_JOURNALED_REGION_PNGS = 64;
+
+    @Value
+    private static class JournaledRegionPng {
+        private final long imageModified;
+        private final long journalModified;
+        private final long journalLength;
+        private final StaticContentProvider provider;
+    }
 
     /**
      * Scan for available maps.
@@ -300,8 +324,17 @@ public final class MagicMapContentDelivery implements ContentDelivery {
         }
         final WorldRenderCache worldRenderCache = worldFileCache.getRenderTypeMap().get(renderType);
         final File sendFile = new File(worldRenderCache.getMapFolder(), "r." + x + "." + z + ".png");
-        if (!worldFileCache.getEffectiveWorldBorder().containsRegion(x, z) || !sendFile.exists()) {
+        final File journalFile = new File(worldRenderCache.getMapFolder(), "r." + x + "." + z + ".journal");
+        if (!worldFileCache.getEffectiveWorldBorder().containsRegion(x, z) || (!sendFile.exists() && !journalFile.exists())) {
             session.getResponse().setContentProvider(emptyRegionPngProvider);
+        } else if (journalFile.exists()) {
+            // Chunks saved since the image was last written
+            final StaticContentProvider provider = getJournaledRegionPngProvider(sendFile, journalFile);
+            if (provider == null) {
+                session.send(); // 404
+                return;
+            }
+            session.getResponse().setContentProvider(provider);
         } else {
             session.getResponse().setContentProvider(new FileContentProvider(HttpContentType.IMAGE_PNG, sendFile));
         }
@@ -309,11 +342,40 @@ public final class MagicMapContentDelivery implements ContentDelivery {
         session.send();
     }
 
+    /**
+     * Get the image of a region with its journal applied, encoded
+     * anew only if either file changed since the last request.
+     *
+     * @return the provider, or null if reading failed
+     */
+    private StaticContentProvider getJournaledRegionPngProvider(File imageFile, File journalFile) {
+        final long imageModified = imageFile.lastModified();
+        final long journalModified = journalFile.lastModified();
+        final long journalLength = journalFile.length();
+        final JournaledRegionPng cached = journaledRegionPngs.get(journalFile);
+        if (cached != null && cached.imageModified == imageModified
+            && cached.journalModified == journalModified && cached.journalLength == journalLength) {
+            return cached.provider;
+        }
+        final PaletteImage image;
+        try {
+            image = RegionFileCache.readImageWithJournal(imageFile, journalFile);
+        } catch (IOException ioe) {
+            plugin().getLogger().log(Level.SEVERE, "Read journaled region " + imageFile, ioe);
+            return null;
+        }
+        final StaticContentProvider provider = new StaticContentProvider(HttpContentType.IMAGE_PNG, image.toBufferedImage(), "png");
+        journaledRegionPngs.put(journalFile, new JournaledRegionPng(imageModified, journalModified, journalLength, provider));
+        return provider;
+    }
+
     @Override
     public void tick(ContentDeliverySession session) {
         if (session.getState() != ContentDeliveryState.WEBSOCKET_CONNECTED) return;
         final MagicMapContentDeliverySessionData sessionData = (MagicMapContentDeliverySessionData) session.getContentDeliverySessionData();
         if (sessionData == null) return;
+        sessionData.setLastTickTime(System.currentTimeMillis());
+        if (sessionData.isViewportKnown()) viewerSessions.add(sessionData);
         // Prune our map
         for (Iterator<Map.Entry<UUID, PlayerLocationTag>> iter = sessionData.getPlayerLocationTags().entrySet().iterator(); iter.hasNext();) {
             Map.Entry<UUID, PlayerLocationTag> entry = iter.next();
@@ -403,6 +465,19 @@ public final class MagicMapContentDelivery implements ContentDelivery {
             sessionData.getPlayerLocationTags().clear();
             sessionData.setSendAllClaims(true);
             break;
+        case "magicmap:viewport": {
+            if (message.getValue() == null) return;
+            final String[] tokens = message.getValue().split(",");
+            if (tokens.length != 2) return;
+            try {
+                sessionData.setViewportX(Integer.parseInt(tokens[0]));
+                sessionData.setViewportZ(Integer.parseInt(tokens[1]));
+            } catch (IllegalArgumentException iae) {
+                return;
+            }
+            sessionData.setViewportKnown(true);
+            break;
+        }
         case "magicmap:click_player_list": {
             if (message.getValue() == null) return;
             final UUID uuid;
@@ -493,6 +568,27 @@ public final class MagicMapContentDelivery implements ContentDelivery {
         }
     }
 
+    /**
+     * Add the viewport centers of all web viewers looking at a world
+     * of this server, by world name.  Sessions which stopped ticking
+     * are dropped.
+     */
+    public void collectViewers(Map<String, List<Vec2i>> result) {
+        final long staleTime = System.currentTimeMillis() - 5000L;
+        for (Iterator<MagicMapContentDeliverySessionData> iter = viewerSessions.iterator(); iter.hasNext();) {
+            final MagicMapContentDeliverySessionData sessionData = iter.next();
+            if (sessionData.getLastTickTime() < staleTime) {
+                iter.remove();
+                continue;
+            }
+            final WorldFileCache worldFileCache = sessionData.getWorldFileCache();
+            if (worldFileCache == null || worldFileCache.getServer() != NetworkServer.current()) continue;
+            if (sessionData.isLoadingMap()) continue;
+            result.computeIfAbsent(worldFileCache.getName(), n -> new ArrayList<>())
+                .add(Vec2i.of(sessionData.getViewportX(), sessionData.getViewportZ()));
+        }
+    }
+
     private boolean changeMap(ContentDeliverySession session, MagicMapContentDeliverySessionData sessionData, NetworkServer server, String worldName, int x, int z, UUID uuid) {
         if (sessionData.isLoadingMap()) return false;
         String mapName = null;
@@ -515,6 +611,7 @@ public final class MagicMapContentDelivery implements ContentDelivery {
             session.sendChatMessage(text("Jumping to " + PlayerCache.nameForUuid(uuid), GREEN));
         }
         sessionData.setLoadingMap(true);
+        sessionData.setViewportKnown(false);
         sessionData.setMapName(mapName);
         sessionData.setWorldFileCache(worldFileCache);
         session.sendMessage(new ChangeMapMessage(mapName, worldFileCache.getDisplayName() + " - Magic Map",
@@ -21,6 +21,11 @@ public final class MagicMapContentDeliverySessionData implements ContentDelivery
     private final Map<UUID, Integer> missingPlayers = new HashMap<>();
     private boolean loadingMap = false;
     private boolean sendAllClaims = true;
+    // Block coordinates at the center of the browser window
+    private boolean viewportKnown = false;
+    private int viewportX;
+    private int viewportZ;
+    private long lastTickTime;
 
     public boolean isInWorld(PlayerLocationTag tag) {
         return worldFileCache != null
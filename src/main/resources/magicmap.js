@@ -89,6 +89,13 @@ function calculateFrame() {
     }
 }
 
+function sendViewport() {
+    const scrolling = document.scrollingElement;
+    const centerX = Math.floor(worldBorder.minX + (scrolling.scrollLeft + scrolling.clientWidth / 2) / scalingFactor);
+    const centerZ = Math.floor(worldBorder.minZ + (scrolling.scrollTop + scrolling.clientHeight / 2) / scalingFactor);
+    sendServerMessage('magicmap:viewport', centerX + ',' + centerZ);
+}
+
 var mouseDown = false;
 var dragX = 0;
 var dragY = 0;
@@ -103,7 +110,10 @@ window.addEventListener('load', event => {
     const height = scrolling.clientHeight;
     scrolling.scrollTo(scalingFactor * (worldBorder.centerX - worldBorder.minX) - (width / 2),
                        scalingFactor * (worldBorder.centerZ - worldBorder.minZ) - (height / 2));
-    document.onscrollend = event => calculateFrame();
+    document.onscrollend = event => {
+        calculateFrame();
+        sendViewport();
+    };
     const mouseSurface = document;
     mouseSurface.onmousedown = event => {
         mouseDown = true;
@@ -265,6 +275,7 @@ window.addEventListener('load', event => {
             scrollTo(event.packet.x, event.packet.z);
             document.getElementById('world-select').value = mapName;
             sendServerMessage('magicmap:did_change_map');
+            sendViewport();
             break;
         }
         case 'magicmap:show_tooltip': {
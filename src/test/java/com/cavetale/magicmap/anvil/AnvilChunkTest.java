@@ -0,0 +1,186 @@
+package com.cavetale.magicmap.anvil;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.bukkit.Material;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public final class AnvilChunkTest {
+    private static final Material[] MATERIALS = {
+        Material.AIR, Material.STONE, Material.GRANITE, Material.POLISHED_GRANITE,
+        Material.DIORITE, Material.POLISHED_DIORITE, Material.ANDESITE, Material.POLISHED_ANDESITE,
+        Material.GRASS_BLOCK, Material.DIRT, Material.COARSE_DIRT, Material.PODZOL,
+        Material.COBBLESTONE, Material.OAK_PLANKS, Material.SPRUCE_PLANKS, Material.BIRCH_PLANKS,
+        Material.JUNGLE_PLANKS,
+    };
+
+    /**
+     * Known names, so the test does not need Material.matchMaterial.
+     */
+    private static Map<String, Material> materialCache() {
+        final Map<String, Material> result = AnvilChunk.newMaterialCache();
+        for (Material material : MATERIALS) {
+            result.put(name(material), material);
+        }
+        result.put(name(Material.OAK_SLAB), Material.OAK_SLAB);
+        return result;
+    }
+
+    private static String name(Material material) {
+        return "minecraft:" + material.name().toLowerCase();
+    }
+
+    /**
+     * Pack values the way chunks do since 1.16: as many per long as
+     * fit, none spanning two longs.
+     */
+    private static long[] pack(int[] values, int bits) {
+        final int perLong = 64 / bits;
+        final long[] result = new long[(values.length + perLong - 1) / perLong];
+        for (int i = 0; i < values.length; i += 1) {
+            result[i / perLong] |= (long) values[i] << ((i % perLong) * bits);
+        }
+        return result;
+    }
+
+    private static int blockIndex(int x, int y, int z) {
+        return ((y & 15) << 8) | ((z & 15) << 4) | (x & 15);
+    }
+
+    private static Map<String, Object> paletteEntry(Material material, boolean waterlogged) {
+        final Map<String, Object> result = new HashMap<>();
+        result.put("Name", name(material));
+        if (waterlogged) result.put("Properties", Map.of("waterlogged", "true"));
+        return result;
+    }
+
+    private static Map<String, Object> section(int y, List<Map<String, Object>> palette, long[] data) {
+        final Map<String, Object> blockStates = new HashMap<>();
+        blockStates.put("palette", palette);
+        if (data != null) blockStates.put("data", data);
+        final Map<String, Object> result = new HashMap<>();
+        result.put("Y", (byte) y);
+        result.put("block_states", blockStates);
+        return result;
+    }
+
+    private static Map<String, Object> chunk(int yPos, List<Map<String, Object>> sections, long[] worldSurface) {
+        final Map<String, Object> result = new HashMap<>();
+        result.put("Status", "minecraft:full");
+        result.put("xPos", 3);
+        result.put("zPos", -2);
+        result.put("yPos", yPos);
+        result.put("sections", sections);
+        if (worldSurface != null) result.put("Heightmaps", Map.of("WORLD_SURFACE", worldSurface));
+        return result;
+    }
+
+    @Test
+    public void testFourBitPalette() {
+        final List<Map<String, Object>> palette = List.of(paletteEntry(Material.AIR, false),
+                                                          paletteEntry(Material.STONE, false),
+                                                          paletteEntry(Material.OAK_SLAB, true));
+        final int[] values = new int[4096];
+        values[blockIndex(0, 0, 0)] = 1;
+        values[blockIndex(15, 15, 15)] = 1;
+        values[blockIndex(5, 7, 9)] = 2;
+        final AnvilChunk chunk = AnvilChunk.of(chunk(0, List.of(section(0, palette, pack(values, 4))), null),
+                                               materialCache());
+        assertNotNull(chunk);
+        assertEquals(3, chunk.getChunkX());
+        assertEquals(-2, chunk.getChunkZ());
+        assertEquals(Material.STONE, chunk.getType(0, 0, 0));
+        assertEquals(Material.STONE, chunk.getType(15, 15, 15));
+        assertEquals(Material.OAK_SLAB, chunk.getType(5, 7, 9));
+        assertTrue(chunk.isWaterlogged(5, 7, 9));
+        assertEquals(Material.AIR, chunk.getType(1, 0, 0));
+        assertFalse(chunk.isWaterlogged(0, 0, 0));
+        // Outside of any section
+        assertEquals(Material.AIR, chunk.getType(0, 16, 0));
+        // Without a height map, the top of the highest section counts
+        assertEquals(15, chunk.getHighestBlockY(0, 0));
+    }
+
+    @Test
+    public void testFiveBitPalette() {
+        final List<Map<String, Object>> palette = new ArrayList<>();
+        for (Material material : MATERIALS) {
+            palette.add(paletteEntry(material, false));
+        }
+        assertEquals(17, palette.size());
+        final int[] values = new int[4096];
+        for (int i = 0; i < values.length; i += 1) {
+            values[i] = i % MATERIALS.length;
+        }
+        final AnvilChunk chunk = AnvilChunk.of(chunk(-4, List.of(section(-4, palette, pack(values, 5))), null),
+                                               materialCache());
+        assertNotNull(chunk);
+        assertEquals(-4, chunk.getMinSectionY());
+        for (int y = -64; y < -48; y += 1) {
+            for (int z = 0; z < 16; z += 1) {
+                for (int x = 0; x < 16; x += 1) {
+                    assertEquals(MATERIALS[blockIndex(x, y, z) % MATERIALS.length], chunk.getType(x, y, z));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSingleEntryPalette() {
+        final List<Map<String, Object>> palette = List.of(paletteEntry(Material.STONE, false));
+        final AnvilChunk chunk = AnvilChunk.of(chunk(0, List.of(section(0, palette, null)), null),
+                                               materialCache());
+        assertNotNull(chunk);
+        assertEquals(Material.STONE, chunk.getType(8, 8, 8));
+    }
+
+    @Test
+    public void testNotFull() {
+        final Map<String, Object> nbt = chunk(0, List.of(), null);
+        nbt.put("Status", "minecraft:features");
+        assertNull(AnvilChunk.of(nbt, materialCache()));
+    }
+
+    /**
+     * A world from y=0 to y=256.  The height map holds the first free
+     * block above the highest one.
+     */
+    @Test
+    public void testWorldSurface256() {
+        final int[] heights = new int[256];
+        heights[0] = 0;
+        heights[1] = 101;
+        heights[255] = 256;
+        final long[] data = pack(heights, 9);
+        assertEquals(37, data.length);
+        final List<Map<String, Object>> palette = List.of(paletteEntry(Material.AIR, false));
+        final AnvilChunk chunk = AnvilChunk.of(chunk(0, List.of(section(0, palette, null)), data),
+                                               materialCache());
+        assertNotNull(chunk);
+        assertEquals(-1, chunk.getHighestBlockY(0, 0));
+        assertEquals(100, chunk.getHighestBlockY(1, 0));
+        assertEquals(255, chunk.getHighestBlockY(15, 15));
+    }
+
+    /**
+     * A world from y=-64 to y=320.
+     */
+    @Test
+    public void testWorldSurface384() {
+        final int[] heights = new int[256];
+        heights[0] = 0;
+        heights[16] = 55;
+        heights[255] = 384;
+        final long[] data = pack(heights, 9);
+        final List<Map<String, Object>> palette = List.of(paletteEntry(Material.AIR, false));
+        final AnvilChunk chunk = AnvilChunk.of(chunk(-4, List.of(section(-4, palette, null)), data),
+                                               materialCache());
+        assertNotNull(chunk);
+        assertEquals(-65, chunk.getHighestBlockY(0, 0));
+        assertEquals(-10, chunk.getHighestBlockY(0, 1));
+        assertEquals(319, chunk.getHighestBlockY(15, 15));
+    }
+}
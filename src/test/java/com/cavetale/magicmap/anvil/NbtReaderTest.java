@@ -0,0 +1,114 @@
+package com.cavetale.magicmap.anvil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public final class NbtReaderTest {
+    private static Map<String, Object> read(byte[] bytes) throws IOException {
+        return NbtReader.readRoot(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    @Test
+    public void testCompound() throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(10);
+        out.writeUTF("");
+        out.writeByte(1);
+        out.writeUTF("byte");
+        out.writeByte(-3);
+        out.writeByte(2);
+        out.writeUTF("short");
+        out.writeShort(1234);
+        out.writeByte(3);
+        out.writeUTF("int");
+        out.writeInt(-70000);
+        out.writeByte(4);
+        out.writeUTF("long");
+        out.writeLong(1L << 40);
+        out.writeByte(5);
+        out.writeUTF("float");
+        out.writeFloat(0.5f);
+        out.writeByte(6);
+        out.writeUTF("double");
+        out.writeDouble(-2.25);
+        out.writeByte(7);
+        out.writeUTF("bytes");
+        out.writeInt(3);
+        out.write(new byte[] {1, 2, 3});
+        out.writeByte(8);
+        out.writeUTF("string");
+        out.writeUTF("minecraft:stone");
+        out.writeByte(9);
+        out.writeUTF("list");
+        out.writeByte(3);
+        out.writeInt(2);
+        out.writeInt(7);
+        out.writeInt(8);
+        out.writeByte(10);
+        out.writeUTF("compound");
+        out.writeByte(8);
+        out.writeUTF("Name");
+        out.writeUTF("minecraft:air");
+        out.writeByte(0);
+        out.writeByte(11);
+        out.writeUTF("ints");
+        out.writeInt(2);
+        out.writeInt(-1);
+        out.writeInt(1);
+        out.writeByte(12);
+        out.writeUTF("longs");
+        out.writeInt(1);
+        out.writeLong(-1L);
+        out.writeByte(0);
+        final Map<String, Object> root = read(bytes.toByteArray());
+        assertEquals(12, root.size());
+        assertEquals((byte) -3, root.get("byte"));
+        assertEquals((short) 1234, root.get("short"));
+        assertEquals(-70000, root.get("int"));
+        assertEquals(1L << 40, root.get("long"));
+        assertEquals(0.5f, root.get("float"));
+        assertEquals(-2.25, root.get("double"));
+        assertArrayEquals(new byte[] {1, 2, 3}, (byte[]) root.get("bytes"));
+        assertEquals("minecraft:stone", root.get("string"));
+        assertEquals(List.of(7, 8), root.get("list"));
+        assertEquals(Map.of("Name", "minecraft:air"), root.get("compound"));
+        assertArrayEquals(new int[] {-1, 1}, (int[]) root.get("ints"));
+        assertArrayEquals(new long[] {-1L}, (long[]) root.get("longs"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testRootNotCompound() throws Exception {
+        read(new byte[] {8, 0, 0, 0, 0});
+    }
+
+    @Test(expected = IOException.class)
+    public void testNegativeLength() throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(10);
+        out.writeUTF("");
+        out.writeByte(12);
+        out.writeUTF("longs");
+        out.writeInt(-1);
+        read(bytes.toByteArray());
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnknownType() throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(10);
+        out.writeUTF("");
+        out.writeByte(13);
+        out.writeUTF("unknown");
+        read(bytes.toByteArray());
+    }
+}
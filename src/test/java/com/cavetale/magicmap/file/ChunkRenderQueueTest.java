@@ -0,0 +1,135 @@
+package com.cavetale.magicmap.file;
+
+import com.cavetale.core.struct.Vec2i;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public final class ChunkRenderQueueTest {
+    @Test
+    public void testBuckets() {
+        final ChunkRenderQueue queue = new ChunkRenderQueue();
+        assertTrue(queue.add(0, 0));
+        assertFalse(queue.add(0, 0));
+        assertTrue(queue.add(31, 31));
+        assertTrue(queue.add(32, 0));
+        assertTrue(queue.add(-1, -1));
+        assertEquals(4, queue.size());
+        assertEquals(3, queue.getRegionCount());
+        assertTrue(queue.contains(31, 31));
+        assertTrue(queue.contains(-1, -1));
+        assertFalse(queue.contains(1, 0));
+        assertFalse(queue.contains(-33, -1));
+        assertTrue(queue.remove(-1, -1));
+        assertFalse(queue.remove(-1, -1));
+        assertEquals(3, queue.size());
+        assertEquals(2, queue.getRegionCount());
+        queue.clear();
+        assertTrue(queue.isEmpty());
+        assertEquals(0, queue.getRegionCount());
+    }
+
+    /**
+     * A region comes out in chunk index order, and negative chunk
+     * coordinates map back to the right chunks.
+     */
+    @Test
+    public void testPollRegion() {
+        final ChunkRenderQueue queue = new ChunkRenderQueue();
+        queue.add(-1, -1);
+        queue.add(-32, -32);
+        queue.add(-2, -32);
+        final List<ChunkRenderQueue.QueuedChunk> chunks = queue.pollRegion(List.of(), 0L);
+        assertEquals(3, chunks.size());
+        assertEquals(Vec2i.of(-32, -32), chunks.get(0).getChunk());
+        assertEquals(Vec2i.of(-2, -32), chunks.get(1).getChunk());
+        assertEquals(Vec2i.of(-1, -1), chunks.get(2).getChunk());
+        assertNull(chunks.get(0).getColumns());
+        assertEquals(ChunkRenderQueue.ALL_RENDER_TYPES, chunks.get(0).getRenderTypes());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void testColumns() {
+        final ChunkRenderQueue queue = new ChunkRenderQueue();
+        assertTrue(queue.addColumn(17, 35, 1));
+        assertFalse(queue.addColumn(17, 35, 1));
+        assertTrue(queue.addColumn(17, 35, 2));
+        assertTrue(queue.addColumn(31, 47, 1));
+        assertEquals(1, queue.size());
+        final ChunkRenderQueue.QueuedChunk chunk = queue.pollRegion(List.of(), 0L).get(0);
+        assertEquals(Vec2i.of(1, 2), chunk.getChunk());
+        assertEquals(3, chunk.getRenderTypes());
+        final long[] columns = chunk.getColumns();
+        assertNotNull(columns);
+        final int first = ChunkRenderQueue.columnIndex(17, 35);
+        final int last = ChunkRenderQueue.columnIndex(31, 47);
+        assertEquals(1 + 3 * 16, first);
+        assertEquals(255, last);
+        assertEquals(1L << first, columns[0]);
+        assertEquals(0L, columns[1]);
+        assertEquals(0L, columns[2]);
+        assertEquals(1L << 63, columns[3]);
+    }
+
+    /**
+     * Queueing the whole chunk replaces its column mask.
+     */
+    @Test
+    public void testColumnsThenWhole() {
+        final ChunkRenderQueue queue = new ChunkRenderQueue();
+        queue.addColumn(0, 0, 1);
+        assertTrue(queue.add(0, 0));
+        assertFalse(queue.addColumn(0, 0, 1));
+        final ChunkRenderQueue.QueuedChunk chunk = queue.pollRegion(List.of(), 0L).get(0);
+        assertNull(chunk.getColumns());
+        assertEquals(ChunkRenderQueue.ALL_RENDER_TYPES, chunk.getRenderTypes());
+    }
+
+    @Test
+    public void testDrainInto() {
+        final ChunkRenderQueue hot = new ChunkRenderQueue();
+        final ChunkRenderQueue queue = new ChunkRenderQueue();
+        hot.addColumn(0, 0, 1);
+        hot.addColumn(-20, 40, 2);
+        queue.addColumn(1, 0, 2);
+        hot.drainInto(queue);
+        assertTrue(hot.isEmpty());
+        assertEquals(2, queue.size());
+        assertTrue(queue.contains(-2, 2));
+        final ChunkRenderQueue.QueuedChunk chunk = queue.pollRegion(List.of(), 0L).get(0);
+        assertEquals(Vec2i.of(0, 0), chunk.getChunk());
+        assertEquals(3, chunk.getRenderTypes());
+        assertEquals((1L << 0) | (1L << 1), chunk.getColumns()[0]);
+    }
+
+    /**
+     * Without viewers, regions come out in the order they were
+     * queued.  With viewers, the closest region wins.
+     */
+    @Test
+    public void testRegionOrder() {
+        final ChunkRenderQueue queue = new ChunkRenderQueue();
+        queue.add(100, 0);
+        queue.add(0, 0);
+        assertEquals(List.of(Vec2i.of(100, 0)), queue.peekRegion(List.of(), 0L));
+        assertEquals(List.of(Vec2i.of(0, 0)), queue.peekRegion(List.of(Vec2i.of(8, 8)), 0L));
+        assertEquals(List.of(Vec2i.of(100, 0)), queue.peekRegion(List.of(Vec2i.of(8, 8), Vec2i.of(1600, 0)), 0L));
+    }
+
+    /**
+     * A region which has waited long enough beats a closer one.
+     */
+    @Test
+    public void testAging() throws Exception {
+        final ChunkRenderQueue queue = new ChunkRenderQueue();
+        // Region 1,0 starts 1 chunk away from the viewer at chunk 31
+        queue.add(32, 0);
+        Thread.sleep(50L);
+        queue.add(0, 0);
+        final List<Vec2i> viewers = List.of(Vec2i.of(31 << 4, 0));
+        assertEquals(List.of(Vec2i.of(0, 0)), queue.peekRegion(viewers, 0L));
+        // 50ms at 10ms per chunk is worth 5 chunks
+        assertEquals(List.of(Vec2i.of(32, 0)), queue.peekRegion(viewers, 10L));
+    }
+}
@@ -0,0 +1,93 @@
+package com.cavetale.magicmap.file;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public final class HotChunkTrackerTest {
+    private static final long WINDOW = 1000L;
+    private static final int THRESHOLD = 3;
+
+    @Test
+    public void testThreshold() {
+        final HotChunkTracker tracker = new HotChunkTracker();
+        final long now = System.currentTimeMillis();
+        for (int i = 0; i < THRESHOLD; i += 1) {
+            assertFalse(tracker.onQueued(1, 2, now, WINDOW, THRESHOLD));
+        }
+        assertTrue(tracker.onQueued(1, 2, now + 10L, WINDOW, THRESHOLD));
+        assertTrue(tracker.onQueued(1, 2, now + 20L, WINDOW, THRESHOLD));
+        assertEquals(1L, tracker.getChunksTurnedHot());
+        // Other chunks are counted on their own
+        assertFalse(tracker.onQueued(2, 1, now + 20L, WINDOW, THRESHOLD));
+        assertFalse(tracker.onQueued(1, -2, now + 20L, WINDOW, THRESHOLD));
+        assertEquals(1, tracker.countHotChunks(now + 20L));
+    }
+
+    /**
+     * Changes spread over more than one window never add up.
+     */
+    @Test
+    public void testWindow() {
+        final HotChunkTracker tracker = new HotChunkTracker();
+        final long now = System.currentTimeMillis();
+        for (long t = 0L; t < 10L * WINDOW; t += WINDOW / THRESHOLD + 1L) {
+            assertFalse(tracker.onQueued(0, 0, now + t, WINDOW, THRESHOLD));
+        }
+        assertEquals(0L, tracker.getChunksTurnedHot());
+    }
+
+    /**
+     * A hot chunk stays hot until a full window passes without it
+     * crossing the threshold again.
+     */
+    @Test
+    public void testCoolDown() {
+        final HotChunkTracker tracker = new HotChunkTracker();
+        final long now = System.currentTimeMillis();
+        for (int i = 0; i <= THRESHOLD; i += 1) {
+            tracker.onQueued(0, 0, now, WINDOW, THRESHOLD);
+        }
+        assertEquals(1, tracker.countHotChunks(now));
+        // A new window starts, but the chunk is still hot
+        assertTrue(tracker.onQueued(0, 0, now + WINDOW, WINDOW, THRESHOLD));
+        assertEquals(1, tracker.countHotChunks(now + WINDOW));
+        assertFalse(tracker.onQueued(0, 0, now + WINDOW + 1L, WINDOW, THRESHOLD));
+        assertEquals(0, tracker.countHotChunks(now + WINDOW + 1L));
+        // Crossing the threshold again counts as turning hot again
+        for (int i = 0; i < THRESHOLD; i += 1) {
+            tracker.onQueued(0, 0, now + WINDOW + 2L, WINDOW, THRESHOLD);
+        }
+        assertEquals(2L, tracker.getChunksTurnedHot());
+    }
+
+    @Test
+    public void testDisabled() {
+        final HotChunkTracker tracker = new HotChunkTracker();
+        final long now = System.currentTimeMillis();
+        for (int i = 0; i < 100; i += 1) {
+            assertFalse(tracker.onQueued(0, 0, now, 0L, THRESHOLD));
+        }
+        assertEquals(0, tracker.countHotChunks(now));
+    }
+
+    @Test
+    public void testCleanUp() {
+        final HotChunkTracker tracker = new HotChunkTracker();
+        final long now = System.currentTimeMillis() + 10L * WINDOW;
+        tracker.onQueued(0, 0, now - 3L * WINDOW, WINDOW, THRESHOLD);
+        tracker.onQueued(1, 0, now - WINDOW / 2L, WINDOW, THRESHOLD);
+        for (int i = 0; i <= THRESHOLD; i += 1) {
+            tracker.onQueued(2, 0, now - WINDOW, WINDOW, THRESHOLD);
+        }
+        assertEquals(3, tracker.getStats().size());
+        tracker.cleanUp(now, WINDOW);
+        // Quiet for a full window and not hot
+        assertEquals(2, tracker.getStats().size());
+        assertEquals(1, tracker.countHotChunks(now));
+        // Cleaning up again within one window does nothing
+        tracker.cleanUp(now + 1L, WINDOW);
+        assertEquals(2, tracker.getStats().size());
+        tracker.cleanUp(now + 2L * WINDOW, WINDOW);
+        assertEquals(0, tracker.getStats().size());
+    }
+}
@@ -0,0 +1,78 @@
+package com.cavetale.magicmap.file;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public final class MsptControllerTest {
+    private static final double DELTA = 1e-9;
+
+    private static MsptController controller() {
+        final MsptController result = new MsptController();
+        result.configure(30.0, 0.5, 0.1, 1.0, 25.0);
+        return result;
+    }
+
+    @Test
+    public void testClamp() {
+        final MsptController controller = controller();
+        // Far above the target
+        controller.update(1000.0);
+        assertEquals(1.0, controller.getBudgetMillis(), DELTA);
+        assertEquals(1000.0, controller.getLastMspt(), DELTA);
+        // Far below the target: error 30, integral 1 + 3, budget 15 + 4
+        controller.update(0.0);
+        assertEquals(19.0, controller.getBudgetMillis(), DELTA);
+        for (int i = 0; i < 100; i += 1) controller.update(0.0);
+        assertEquals(25.0, controller.getBudgetMillis(), DELTA);
+    }
+
+    /**
+     * Reconfiguring clamps the state to the new range.
+     */
+    @Test
+    public void testConfigure() {
+        final MsptController controller = controller();
+        for (int i = 0; i < 100; i += 1) controller.update(0.0);
+        controller.configure(30.0, 0.5, 0.1, 1.0, 10.0);
+        assertEquals(10.0, controller.getBudgetMillis(), DELTA);
+        // Max below min is raised to min
+        controller.configure(30.0, 0.5, 0.1, 5.0, 2.0);
+        assertEquals(5.0, controller.getBudgetMillis(), DELTA);
+    }
+
+    /**
+     * A long stretch of idle ticks must not wind the integral up
+     * beyond the budget range, so the first slow tick brings the
+     * budget down right away.
+     */
+    @Test
+    public void testAntiWindup() {
+        final MsptController controller = controller();
+        for (int i = 0; i < 10000; i += 1) controller.update(0.0);
+        assertEquals(25.0, controller.getBudgetMillis(), DELTA);
+        // 40 mspt: error -10, integral 25 - 1 = 24, budget -5 + 24
+        controller.update(40.0);
+        assertEquals(19.0, controller.getBudgetMillis(), DELTA);
+        // The same holds at the bottom
+        for (int i = 0; i < 10000; i += 1) controller.update(1000.0);
+        assertEquals(1.0, controller.getBudgetMillis(), DELTA);
+        // 20 mspt: error 10, integral 1 + 1 = 2, budget 5 + 2
+        controller.update(20.0);
+        assertEquals(7.0, controller.getBudgetMillis(), DELTA);
+    }
+
+    /**
+     * At the target, the budget settles on the integral.
+     */
+    @Test
+    public void testSteadyState() {
+        final MsptController controller = controller();
+        controller.update(20.0);
+        final double budget = controller.getBudgetMillis();
+        controller.update(30.0);
+        assertEquals(2.0, controller.getBudgetMillis(), DELTA);
+        assertTrue(budget > controller.getBudgetMillis());
+        controller.update(30.0);
+        assertEquals(2.0, controller.getBudgetMillis(), DELTA);
+    }
+}
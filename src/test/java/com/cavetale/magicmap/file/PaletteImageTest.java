@@ -0,0 +1,85 @@
+package com.cavetale.magicmap.file;
+
+import com.cavetale.magicmap.ColorIndex;
+import java.awt.image.BufferedImage;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public final class PaletteImageTest {
+    /**
+     * Every pixel value survives the trip through a BufferedImage.
+     * Some palette colors share an ARGB value, so only the color is
+     * compared.
+     */
+    @Test
+    public void testRoundTrip() {
+        final PaletteImage image = new PaletteImage(16, 16);
+        for (int i = 0; i < 256; i += 1) {
+            image.getPixels()[i] = (byte) i;
+        }
+        final BufferedImage bufferedImage = image.toBufferedImage();
+        assertEquals(BufferedImage.TYPE_INT_ARGB, bufferedImage.getType());
+        final PaletteImage result = PaletteImage.of(bufferedImage);
+        assertEquals(16, result.getWidth());
+        assertEquals(16, result.getHeight());
+        for (int i = 0; i < 256; i += 1) {
+            final byte pixel = (byte) i;
+            assertEquals(PaletteImage.toArgb(pixel), bufferedImage.getRGB(i % 16, i / 16));
+            assertEquals(PaletteImage.toArgb(pixel), PaletteImage.toArgb(result.getPixels()[i]));
+            if (PaletteImage.toArgb(pixel) == 0) {
+                assertEquals(0, result.getPixels()[i]);
+            }
+        }
+    }
+
+    @Test
+    public void testOfArgb() {
+        final ColorIndex color = ColorIndex.COLOR_1;
+        assertEquals((byte) color.normal, PaletteImage.ofArgb(color.normalRgb));
+        assertEquals((byte) color.dark, PaletteImage.ofArgb(color.darkRgb));
+        // Off the palette by one
+        assertEquals((byte) color.normal, PaletteImage.ofArgb(color.normalRgb + 1));
+        // Not fully opaque
+        assertEquals(0, PaletteImage.ofArgb(color.normalRgb & 0x80FFFFFF));
+        assertEquals(0, PaletteImage.ofArgb(0));
+    }
+
+    @Test
+    public void testCopyInto() {
+        final PaletteImage image = new PaletteImage(4, 3);
+        for (int y = 0; y < 3; y += 1) {
+            for (int x = 0; x < 4; x += 1) {
+                image.set(x, y, (byte) ColorIndex.values()[1 + x + y * 4].normal);
+            }
+        }
+        final IntImage dst = IntImage.create(5, 5);
+        dst.fillRect(0, 0, 5, 5, 0xFF123456);
+        // The 2x2 square at 1,1 goes to 3,2
+        image.copyInto(dst, 1, 1, 3, 2, 2, 2);
+        for (int y = 0; y < 5; y += 1) {
+            for (int x = 0; x < 5; x += 1) {
+                final int expected = x >= 3 && y >= 2 && y < 4
+                    ? PaletteImage.toArgb(image.get(x - 2, y - 1))
+                    : 0xFF123456;
+                assertEquals("x=" + x + " y=" + y, expected, dst.get(x, y));
+            }
+        }
+    }
+
+    /**
+     * Copying out of the palette image gives the same pixels as
+     * copying out of its ARGB conversion.
+     */
+    @Test
+    public void testCopyIntoMatchesCopyFrom() {
+        final PaletteImage image = new PaletteImage(16, 16);
+        for (int i = 0; i < 256; i += 1) {
+            image.getPixels()[i] = (byte) (255 - i);
+        }
+        final IntImage expected = IntImage.create(8, 8);
+        final IntImage actual = IntImage.create(8, 8);
+        expected.copyFrom(IntImage.of(image.toBufferedImage()), 5, 7, 2, 1, 6, 6);
+        image.copyInto(actual, 5, 7, 2, 1, 6, 6);
+        assertArrayEquals(expected.getPixels(), actual.getPixels());
+    }
+}
@@ -0,0 +1,103 @@
+package com.cavetale.magicmap.file;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.BitSet;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public final class RegionJournalTest {
+    private static final int RECORD_SIZE = 2 + 16 * 16;
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private static BitSet chunks(int... indexes) {
+        final BitSet result = new BitSet(1024);
+        for (int index : indexes) result.set(index);
+        return result;
+    }
+
+    /**
+     * Fill the 16x16 pixels of one chunk, see RegionFileCache.
+     */
+    private static void fillChunk(byte[] pixels, int index, byte value) {
+        final int offset = ((index >> 5) << 13) | ((index & 31) << 4);
+        for (int row = 0; row < 16; row += 1) {
+            for (int col = 0; col < 16; col += 1) {
+                pixels[offset + (row << 9) + col] = value;
+            }
+        }
+    }
+
+    @Test
+    public void testAppendAndRead() throws Exception {
+        final File file = folder.newFile("r.0.0.journal");
+        final byte[] pixels = new byte[512 * 512];
+        fillChunk(pixels, 0, (byte) 4);
+        fillChunk(pixels, 33, (byte) 5);
+        fillChunk(pixels, 1023, (byte) 6);
+        // Not in the BitSet, so not written
+        fillChunk(pixels, 34, (byte) 7);
+        RegionFileCache.writeJournal(file, 0, pixels, chunks(0, 33, 1023));
+        assertEquals(3L * RECORD_SIZE, file.length());
+        final byte[] result = new byte[512 * 512];
+        assertEquals(3, RegionFileCache.applyJournal(file, result));
+        final byte[] expected = new byte[512 * 512];
+        fillChunk(expected, 0, (byte) 4);
+        fillChunk(expected, 33, (byte) 5);
+        fillChunk(expected, 1023, (byte) 6);
+        assertArrayEquals(expected, result);
+    }
+
+    @Test
+    public void testLaterRecordWins() throws Exception {
+        final File file = folder.newFile("r.0.0.journal");
+        final byte[] pixels = new byte[512 * 512];
+        fillChunk(pixels, 100, (byte) 4);
+        RegionFileCache.writeJournal(file, 0, pixels, chunks(100));
+        fillChunk(pixels, 100, (byte) 8);
+        RegionFileCache.writeJournal(file, 1, pixels, chunks(100));
+        final byte[] result = new byte[512 * 512];
+        assertEquals(2, RegionFileCache.applyJournal(file, result));
+        assertArrayEquals(pixels, result);
+    }
+
+    /**
+     * An interrupted append leaves a partial record, which reading
+     * ignores and the next append cuts off.
+     */
+    @Test
+    public void testPartialRecord() throws Exception {
+        final File file = folder.newFile("r.0.0.journal");
+        final byte[] pixels = new byte[512 * 512];
+        fillChunk(pixels, 1, (byte) 4);
+        RegionFileCache.writeJournal(file, 0, pixels, chunks(1));
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(new byte[] {0, 2, 9, 9, 9});
+        }
+        assertEquals(RECORD_SIZE + 5L, file.length());
+        final byte[] result = new byte[512 * 512];
+        assertEquals(1, RegionFileCache.applyJournal(file, result));
+        assertArrayEquals(pixels, result);
+        // The next append starts where the last whole record ends
+        fillChunk(pixels, 2, (byte) 5);
+        RegionFileCache.writeJournal(file, 1, pixels, chunks(2));
+        assertEquals(2L * RECORD_SIZE, file.length());
+        final byte[] result2 = new byte[512 * 512];
+        assertEquals(2, RegionFileCache.applyJournal(file, result2));
+        assertArrayEquals(pixels, result2);
+    }
+
+    @Test
+    public void testReadImageWithJournal() throws Exception {
+        final File imageFile = new File(folder.getRoot(), "r.0.0.png");
+        final File journalFile = folder.newFile("r.0.0.journal");
+        final byte[] pixels = new byte[512 * 512];
+        fillChunk(pixels, 512, (byte) 4);
+        RegionFileCache.writeJournal(journalFile, 0, pixels, chunks(512));
+        final PaletteImage image = RegionFileCache.readImageWithJournal(imageFile, journalFile);
+        assertEquals(512, image.getWidth());
+        assertArrayEquals(pixels, image.getPixels());
+    }
+}